@@ -11,6 +11,7 @@
 import java.util.*;
 import java.awt.*;
 import java.lang.*;
+import java.math.BigInteger;
 
 /** A symbolic constraint, consisting of a list of sources, each
  *  with a coefficient.  The sums of the coefficients times sources
@@ -27,19 +28,22 @@ public class Constraint implements Cloneable, Constants
   /** The name of this constraint */
   String name = null;
 
-  /** List of MeasureDependencies */
-  Vector sources;
+  /** The MeasureDependencies and their coefficients */
+  Terms terms = Terms.EMPTY;
 
-  /** List of the coefficients for the corresponding sources */
-  Vector weights;
+  /** The id the nullspace knows this constraint by, so that it can be
+   *  retracted.  0 until it is first added to a nullspace, and always
+   *  0 for constraints that are not assumptions. */
+  int id = 0;
+
+  /** The last id handed out */
+  static int lastId = 0;
 
   /** I wonder what this variable is for? */
 //  String label = null;
 
   Constraint()
     {
-      sources = new Vector();
-      weights = new Vector();
       assumption = false;
     }
 
@@ -47,23 +51,14 @@ public class Constraint implements Cloneable, Constants
 
   Constraint(Expression e1, Expression e2)
     {
-      sources = (Vector)e1.sources.clone();
-      weights = (Vector)e1.weights.clone();
-
-      // merge the sources and weights vectors
-
-      for(int i=0;i<e2.sources.size();i++)
-	{
-	  Object src = e2.sources.elementAt(i);
-	  int weight = ((Integer)e2.weights.elementAt(i)).intValue();
-	  add(src,-weight);
-	}
+      terms = e1.terms.add(e2.terms,-1);
 
       name = e1.toString() + " = " + e2.toString();
       assumption = true;
     }
 
-  /** Add a term to the constraint
+  /** Add a term to the constraint.  A term for a source that is
+   *  already in the constraint is combined with it.
    *
    * @param src  The variable
    * @param weight   The coefficient
@@ -71,108 +66,63 @@ public class Constraint implements Cloneable, Constants
 
   void add(Object src,int weight)
     {
-      int index = sources.indexOf(src);
-      
-      // check if this source is already in the constraint
-      if (index < 0)
-	{
-	  // just add the term
-	  sources.addElement(src);
-	  weights.addElement(new Integer(weight));
-	}
-      else
-	{
-	  // combine the terms
-	  int oldWeight = ((Integer)weights.elementAt(index)).intValue();
-	  int newWeight = oldWeight+weight;
-
-	  if (newWeight != 0)
-	    weights.setElementAt(new Integer(newWeight),index);
-	  else
-	    {
-	      sources.removeElementAt(index);
-	      weights.removeElementAt(index);
-	    }
-	}
+      terms = terms.add((MeasureDependency)src,weight);
     }
 
-  /** Check if any sources in the are the same, and combine their
-   *  weights, if necessary */
-
-  void joinDuplicates()
-  {
-    for(int i=sources.size()-1;i>=0;i--)
-      {
-	Object src = sources.elementAt(i);
-	int index = sources.indexOf(src);
-
-	if (index >= i)
-	  continue;
-
-	int weight1 = ((Integer)weights.elementAt(i)).intValue();
-	int weight2 = ((Integer)weights.elementAt(index)).intValue();
+  /** The terms, interned so that identical constraints share them */
 
-	int newWeight = weight1+weight2;
-
-	sources.removeElementAt(i);
-	weights.removeElementAt(i);
-	      
-	if (newWeight == 0)
-	  {
-	    sources.removeElementAt(index);
-	    weights.removeElementAt(index);
+  Terms terms()
+    {
+      terms = terms.intern();
 
-	    i--;
-	  }
-	else
-	  weights.setElementAt(new Integer(newWeight),index);
-      }
-  }
+      return terms;
+    }
 
   /** Check if this constraint is a tautology */
 
   boolean isTautology()
     {
-      return sources.size() == 0;
+      return terms.size() == 0;
     }
 
   /** Check if this constraint sets PI = 0 */
 
   boolean isInvalid()
     {
-      return sources.size() == 1 && 
-	sources.firstElement() instanceof PiMeasure;
+      return terms.size() == 1 && terms.sources[0] instanceof PiMeasure;
     }
 
   /** Generate a textual representation for this constraint */
 
   public String toString()
     {
+      int n = terms.size();
+
       // a list of the sources on the left side
       Vector leftSide = new Vector();
       // list of the weights on the left side
-      int[] leftWeights = new int[sources.size()];
+      int[] leftWeights = new int[n];
 
       // a list of the sources on the left side
       Vector rightSide = new Vector();
       // list of the weights on the left side
-      int[] rightWeights = new int[sources.size()];
+      int[] rightWeights = new int[n];
 
       // partition the sources to the leftSide and rightSide vectors
 
-      for(int i=0;i<sources.size();i++)
+      for(int i=0;i<n;i++)
 	{
-	  int weight = ((Integer)weights.elementAt(i)).intValue();
+	  int weight = terms.weights[i];
 
 	  if (weight > 0)
 	    {
 	      leftWeights[leftSide.size()] = weight;
-	      leftSide.addElement(sources.elementAt(i));
+	      leftSide.addElement(terms.sources[i]);
 	    }
 	  else
 	    {
 	      rightWeights[rightSide.size()] = -weight;
-	      rightSide.addElement(sources.elementAt(i));
+	      rightSide.addElement(terms.sources[i]);
 	    }
 	}
 
@@ -215,9 +165,9 @@ public class Constraint implements Cloneable, Constants
     {
       Constraint c1 = new Constraint();
 
+      // the terms are never changed, so they can be shared
       c1.assumption = assumption;
-      c1.sources = (Vector)sources.clone();
-      c1.weights = (Vector)weights.clone();
+      c1.terms = terms;
       
       return c1;
     }
@@ -246,9 +196,9 @@ public class Constraint implements Cloneable, Constants
 
     // check that each of the sources is a valid output
 
-    for(int i=0;i<sources.size();i++)
+    for(int i=0;i<terms.size();i++)
       {
-	MeasureDependency md = (MeasureDependency)sources.elementAt(i);
+	MeasureDependency md = terms.sources[i];
 
 	if (!md.isValidOutput(outputs))
 	  return false;
@@ -267,13 +217,13 @@ public class Constraint implements Cloneable, Constants
     ConstraintRule cr = new ConstraintRule();
 
     // for each source
-    for(int j=0;j<sources.size();j++)
+    for(int j=0;j<terms.size();j++)
       {
-	MeasureDependency md = (MeasureDependency)sources.elementAt(j);
+	MeasureDependency md = terms.sources[j];
 
 	if (md.type == PI)
 	  {
-	    cr.addPi(((Integer)weights.elementAt(j)).intValue());
+	    cr.addPi(terms.weights[j]);
 	    continue;
 	  }
 
@@ -282,7 +232,7 @@ public class Constraint implements Cloneable, Constants
 	MeasureRule mr = new MeasureRule();
 
 	mr.type = md.type;
-	mr.weight = ((Integer)weights.elementAt(j)).intValue();
+	mr.weight = terms.weights[j];
 	mr.parents = new Rule[mr.type == ANGLE_MEASURE ? 3 : 2];
 	mr.childNum = new int[mr.type == ANGLE_MEASURE ? 3 : 2];
 
@@ -306,6 +256,276 @@ public class Constraint implements Cloneable, Constants
   }
 }
 
+/** The terms of a constraint or expression in canonical form: the
+ *  sources sorted by id, each with a nonzero coefficient, and no
+ *  source twice.  Terms are never changed once made, so they can be
+ *  shared.  Terms can be interned, so that identical constraints have
+ *  the same terms, and can be compared with ==.
+ */
+
+final class Terms
+{
+  /** The sources, sorted by id */
+  final MeasureDependency[] sources;
+
+  /** The coefficient of each source */
+  final int[] weights;
+
+  /** The hash code, computed when the terms are made */
+  final int hash;
+
+  /** The terms of a constraint with no terms */
+  static final Terms EMPTY = new Terms(new MeasureDependency[0],new int[0]);
+
+  /** The interned terms.  Each is its own key. */
+  static Hashtable interned = new Hashtable();
+
+  /** The table is cleared when it holds this many terms, so that it
+   *  doesn't keep discarded shapes alive for ever.  Terms interned
+   *  before and after that are not shared. */
+  static final int INTERN_SIZE = 4096;
+
+  /** The generic form of the terms, made the first time the nullspace
+   *  needs it: each angle is replaced by its generic equivalent, and
+   *  the terms are combined again and sorted by the id of the generic
+   *  variable.  The variables are Uniques or MeasureDependencies. */
+  Object[] genericVariables = null;
+  int[] genericIds;
+  long[] genericWeights;
+
+  Terms(MeasureDependency[] s,int[] w)
+    {
+      sources = s;
+      weights = w;
+
+      int h = 0;
+      for(int i=0;i<s.length;i++)
+	h = 31*(31*h+s[i].id)+w[i];
+
+      hash = h;
+    }
+
+  int size()
+    {
+      return sources.length;
+    }
+
+  /** The terms with another term added.  If the source is already
+   *  there, the coefficients are combined.
+   */
+
+  Terms add(MeasureDependency src,int weight)
+    {
+      int n = sources.length;
+
+      // binary search for the source's position
+      int lo = 0, hi = n;
+
+      while (lo < hi)
+	{
+	  int mid = (lo+hi) >>> 1;
+
+	  if (sources[mid].id < src.id)
+	    lo = mid+1;
+	  else
+	    hi = mid;
+	}
+
+      if (lo < n && sources[lo] == src)
+	{
+	  int w = weights[lo]+weight;
+
+	  if (w != 0)
+	    {
+	      int[] ws = weights.clone();
+	      ws[lo] = w;
+	      return new Terms(sources,ws);
+	    }
+
+	  MeasureDependency[] s = new MeasureDependency[n-1];
+	  int[] ws = new int[n-1];
+	  System.arraycopy(sources,0,s,0,lo);
+	  System.arraycopy(weights,0,ws,0,lo);
+	  System.arraycopy(sources,lo+1,s,lo,n-lo-1);
+	  System.arraycopy(weights,lo+1,ws,lo,n-lo-1);
+
+	  return new Terms(s,ws);
+	}
+
+      if (weight == 0)
+	return this;
+
+      MeasureDependency[] s = new MeasureDependency[n+1];
+      int[] ws = new int[n+1];
+      System.arraycopy(sources,0,s,0,lo);
+      System.arraycopy(weights,0,ws,0,lo);
+      s[lo] = src;
+      ws[lo] = weight;
+      System.arraycopy(sources,lo,s,lo+1,n-lo);
+      System.arraycopy(weights,lo,ws,lo+1,n-lo);
+
+      return new Terms(s,ws);
+    }
+
+  /** The sum of these terms and a multiple of other terms, merging
+   *  the sorted lists */
+
+  Terms add(Terms t,int factor)
+    {
+      MeasureDependency[] s = new MeasureDependency[size()+t.size()];
+      int[] ws = new int[s.length];
+      int i = 0, j = 0, n = 0;
+
+      while (i < size() || j < t.size())
+	{
+	  MeasureDependency src;
+	  int w;
+
+	  if (j == t.size() ||
+	      (i < size() && sources[i].id < t.sources[j].id))
+	    {
+	      src = sources[i];
+	      w = weights[i++];
+	    }
+	  else if (i == size() || t.sources[j].id < sources[i].id)
+	    {
+	      src = t.sources[j];
+	      w = factor*t.weights[j++];
+	    }
+	  else
+	    {
+	      src = sources[i];
+	      w = weights[i++]+factor*t.weights[j++];
+	    }
+
+	  if (w != 0)
+	    {
+	      s[n] = src;
+	      ws[n++] = w;
+	    }
+	}
+
+      if (n < s.length)
+	{
+	  MeasureDependency[] s2 = new MeasureDependency[n];
+	  int[] ws2 = new int[n];
+	  System.arraycopy(s,0,s2,0,n);
+	  System.arraycopy(ws,0,ws2,0,n);
+	  s = s2;
+	  ws = ws2;
+	}
+
+      return new Terms(s,ws);
+    }
+
+  /** The interned terms equal to these */
+
+  Terms intern()
+    {
+      Terms t = (Terms)interned.get(this);
+
+      if (t != null)
+	return t;
+
+      if (interned.size() >= INTERN_SIZE)
+	interned.clear();
+
+      interned.put(this,this);
+
+      return this;
+    }
+
+  /** Make the generic form of the terms, if it hasn't been made yet */
+
+  void makeGeneric()
+    {
+      if (genericVariables != null)
+	return;
+
+      int n = sources.length;
+      Object[] vars = new Object[n];
+      int[] ids = new int[n];
+      long[] w = new long[n];
+      int size = 0;
+
+      for(int i=0;i<n;i++)
+	{
+	  Object v = sources[i];
+	  int id = sources[i].id;
+
+	  if (v instanceof AngleMeasure)
+	    {
+	      Unique u = ((AngleMeasure)v).getEquivalent();
+	      v = u;
+	      id = u.id;
+	    }
+
+	  // insert in order of id, combining with an equal id
+	  int k = size;
+	  while (k > 0 && ids[k-1] > id)
+	    k--;
+
+	  if (k > 0 && ids[k-1] == id)
+	    w[k-1] += weights[i];
+	  else
+	    {
+	      System.arraycopy(vars,k,vars,k+1,size-k);
+	      System.arraycopy(ids,k,ids,k+1,size-k);
+	      System.arraycopy(w,k,w,k+1,size-k);
+	      vars[k] = v;
+	      ids[k] = id;
+	      w[k] = weights[i];
+	      size ++;
+	    }
+	}
+
+      // drop the terms that cancelled
+      int m = 0;
+
+      for(int i=0;i<size;i++)
+	if (w[i] != 0)
+	  {
+	    vars[m] = vars[i];
+	    ids[m] = ids[i];
+	    w[m++] = w[i];
+	  }
+
+      genericIds = new int[m];
+      genericWeights = new long[m];
+      System.arraycopy(ids,0,genericIds,0,m);
+      System.arraycopy(w,0,genericWeights,0,m);
+
+      Object[] gv = new Object[m];
+      System.arraycopy(vars,0,gv,0,m);
+      genericVariables = gv;
+    }
+
+  public int hashCode()
+    {
+      return hash;
+    }
+
+  public boolean equals(Object o)
+    {
+      if (o == this)
+	return true;
+
+      if (!(o instanceof Terms))
+	return false;
+
+      Terms t = (Terms)o;
+
+      if (t.hash != hash || t.size() != size())
+	return false;
+
+      for(int i=0;i<sources.length;i++)
+	if (t.sources[i] != sources[i] || t.weights[i] != weights[i])
+	  return false;
+
+      return true;
+    }
+}
+
 /** The constraints window.  This structure also stores all constraints
  *  and the nullspace */
 	  
@@ -336,6 +556,19 @@ class ConstraintFrame extends Frame implements Constants
   Editor editor;
   Undo undo;
 
+  /** The window showing the metrics of the nullspace */
+  DiagnosticsFrame diagnostics;
+
+  /** The number of variables in the nullspace after it was last
+   *  compacted */
+  int compactedSize = 0;
+
+  /** The nullspace is compacted when it has grown by this factor */
+  static final int COMPACT_GROWTH = 2;
+
+  /** The nullspace is not compacted while it has fewer variables */
+  static final int COMPACT_MINIMUM = 256;
+
   /** Create the window (but don't display it yet) */
 
   ConstraintFrame(DrawPanel dp,Editor e,Undo u)
@@ -359,7 +592,10 @@ class ConstraintFrame extends Frame implements Constants
       middle.add(new Button("Test intermediate"));
       controls.add("North",top);
       controls.add("Center",middle);
-      controls.add("South",new Button("Close"));
+      Panel bottom = new Panel();
+      bottom.add(new Button("Diagnostics"));
+      bottom.add(new Button("Close"));
+      controls.add("South",bottom);
 
       add("South",controls);
 
@@ -389,6 +625,8 @@ class ConstraintFrame extends Frame implements Constants
       add("Center",p);
 
       pack();
+
+      diagnostics = new DiagnosticsFrame(this);
     }
 
   /** Clear out all existing constraints and reset the nullspace */
@@ -400,8 +638,19 @@ class ConstraintFrame extends Frame implements Constants
       stepsList.clear();
       steps.clear();
       nullspace.clear();
+      compactedSize = 0;
       inputConstraints.removeAllElements();
       outputConstraints.removeAllElements();
+      nullspaceChanged();
+    }
+
+  /** Update the diagnostics window, if it is shown, after the
+   *  nullspace has changed or been replaced */
+
+  void nullspaceChanged()
+    {
+      if (diagnostics.isShowing())
+	diagnostics.update();
     }
 
   /** Handle a list event */
@@ -480,6 +729,11 @@ class ConstraintFrame extends Frame implements Constants
 	      drawPanel.setDrawMode(CONCLUDE_MODE);
 	      return true;
 	    }
+	  else if (choice.equals("Diagnostics"))
+	    {
+	      diagnostics.show();
+	      return true;
+	    }
 	  
 	}
 
@@ -498,7 +752,11 @@ class ConstraintFrame extends Frame implements Constants
 
   boolean addInput(Constraint c)
   {
-    if (nullspace.add(c))
+    boolean redundant = nullspace.add(c);
+
+    nullspaceChanged();
+
+    if (redundant)
       {
 	c.assumption = false;
 	return true;
@@ -568,8 +826,69 @@ class ConstraintFrame extends Frame implements Constants
       nullspace.add(c);
       c.assumption = false;
 
-      if (DEBUG)
-	System.out.println("New Nullspace = \n"+nullspace);
+      if (Nullspace.debug)
+	{
+	  System.out.println("New Nullspace = \n"+nullspace);
+	  System.out.println(nullspace.metrics());
+	}
+
+      nullspaceChanged();
+    }
+
+  /** Remove the variables of discarded shapes from the nullspace
+   *
+   *  @return  The number of variables removed
+   */
+
+  int compact()
+    {
+      int removed = nullspace.compact(drawPanel.shapes);
+      compactedSize = nullspace.numVariables;
+
+      if (Nullspace.debug)
+	System.out.println("Compacted nullspace: "+removed+
+			   " variables removed, "+compactedSize+" left");
+
+      nullspaceChanged();
+
+      return removed;
+    }
+
+  /** Compact the nullspace if it has grown enough since it was last
+   *  compacted.  The variables of every shape that isn't in the draw
+   *  panel are removed, so this must only be called between steps,
+   *  once the new shapes of the last step have been added to it. */
+
+  void compactIfNeeded()
+    {
+      if (nullspace.numVariables > COMPACT_GROWTH*
+	  Math.max(compactedSize,COMPACT_MINIMUM))
+	compact();
+    }
+
+  /** Add each of a batch of constraints to the nullspace, unless it
+   *  already follows from the nullspace and the constraints before it
+   *
+   *  @return  For each constraint, true if it was already consistent
+   */
+
+  boolean[] addProvenConstraints(Vector constraints)
+    {
+      boolean[] redundant = nullspace.addAll(constraints);
+
+      for(int i=0;i<redundant.length;i++)
+	if (!redundant[i])
+	  ((Constraint)constraints.elementAt(i)).assumption = false;
+
+      if (Nullspace.debug)
+	{
+	  System.out.println("New Nullspace = \n"+nullspace);
+	  System.out.println(nullspace.metrics());
+	}
+
+      nullspaceChanged();
+
+      return redundant;
     }
 
   /** Add a blank line to the intermediate steps */
@@ -587,12 +906,18 @@ class ConstraintFrame extends Frame implements Constants
     stepsList.deselect(stepsList.getSelectedIndex());
   }
 
-  /** Remove the last input constraint */
+  /** Remove an input constraint from the display.  A constraint that
+   *  already followed when it was assumed was never listed. */
 
-  void removeInput()
+  void removeInput(Constraint c)
   {
-    inputList.delItem(inputList.countItems()-1);
-    inputConstraints.removeElementAt(inputConstraints.size()-1);
+    int i = inputConstraints.indexOf(c);
+
+    if (i < 0)
+      return;
+
+    inputList.delItem(i);
+    inputConstraints.removeElementAt(i);
   }
 
   /** Remove the last output constraint */
@@ -612,374 +937,1728 @@ class ConstraintFrame extends Frame implements Constants
  *  linear combination of other constraints that generates the
  *  desired constraint
  *  
- *  The nullspace is stored as a sparse matrix.  Each row is a list
- *  of variables and the nonzero coefficients for each one.  Variables
- *  not listed in a row have a coefficient of zero.
- *  
- *  The nullspace conceptually starts out as a giant identity matrix,
- *  with an entry for every possible variable.  In practice, the
- *  nullspace begins empty.  When a constraint containing a new variable
- *  is added to the matrix, a new row is first added to the nullspace
- *  corresponding to that variable.
+ *  Constraints are converted to rows: sparse lists of variable ids
+ *  and the nonzero coefficient for each one.  Variables not listed
+ *  in a row have a coefficient of zero.  The rows are stored by a
+ *  ProofEngine; which engine is used is chosen by engineType.
+ *
+ *  Variables that are not connected by any constraint are kept in
+ *  separate blocks, each with its own engine.  A union-find over the
+ *  variable ids tracks the blocks; when a new constraint connects
+ *  several blocks, they are merged.  Within a block the variables are
+ *  numbered from 0, in the order in which they joined the block, and
+ *  the engine only sees those local numbers.
+ *
+ *  Copying a nullspace takes constant time, so that Undo can save it
+ *  before every step.  The tables indexed by variable id are
+ *  persistent arrays, and the engines are shared between copies: each
+ *  copy has its own generation, and an engine made by another
+ *  generation is copied before it is changed.  So only the blocks
+ *  that change after a copy are ever duplicated, and the rows
+ *  themselves are always shared.
  */
 
 class Nullspace implements Constants, Cloneable
 {
-  /** The rows of the nullspace */
-  Vector rows = new Vector();
+  /** Engine type: store a basis of the nullspace (the original
+   *  representation; see NullspaceEngine) */
+  static final int NULLSPACE_ENGINE = 0;
 
-  /** A list of the variables currently contained in the nullspace */
-  Vector variables = new Vector();
+  /** Engine type: store the proven constraints in reduced row-echelon
+   *  form (see EchelonEngine) */
+  static final int ECHELON_ENGINE = 1;
 
-  /** Add a constraint to the nullspace
-   *
-   *  @param  c  The new constraint
-   *  @return  True if the new constraint is already consistent with the
-   *           existing nullspace
-   */ 
+  /** Engine type: store the proven constraints modulo large primes,
+   *  falling back to exact arithmetic when they disagree (see
+   *  ModularEngine) */
+  static final int MODULAR_ENGINE = 2;
 
-  boolean add(Constraint c)
-    {
-      // Convert the Constraint into a Row
-      // do this first to combine equivalent angles; might zero
-      Row newRow = new Row(c);
+  /** The names of the engine types, as used in the configuration */
+  static final String[] engineNames = { "Nullspace", "Echelon", "Modular" };
 
-      // Check if c contains any variables that the nullspace doesn't
-      // If so, add them
-      for(int i=0;i<newRow.sources.size();i++)
-	{
-	  Object src = newRow.sources.elementAt(i);
+  /** The type of engine used by new nullspaces */
+  static int engineType = NULLSPACE_ENGINE;
 
-	  if (src instanceof AngleMeasure)
-	    src = ((AngleMeasure)src).getEquivalent();
+  /** The variables currently contained in the nullspace, indexed by
+   *  id.  Null for variables that the nullspace doesn't contain. */
+  PersistentArray variables = new PersistentArray();
 
-	  if (variables.indexOf(src) < 0)
-	    addVariable(src);
-	}
+  /** The parent of each variable in the union-find, indexed by id.
+   *  The root of a block is its own parent. */
+  PersistentIntArray parent = new PersistentIntArray();
 
-      int nk = rows.size();    // n-k = num vars - num constraints
-      int[] Nx = new int[nk];
-      boolean zero = true;
+  /** The local number of each variable within its block, less the
+   *  local number of its parent.  Always 0 for a root, which is
+   *  numbered 0. */
+  PersistentIntArray offset = new PersistentIntArray();
 
-      int pivot = -1;
+  /** The engine of each block, indexed by the id of its root.  Null
+   *  for variables that are not a root. */
+  PersistentArray blocks = new PersistentArray();
 
-      // compute N * x, where N is the nullspace and x is the new row
+  /** The number of variables in each block, indexed by the id of
+   *  its root */
+  PersistentIntArray blockSize = new PersistentIntArray();
 
-      for(int i=0;i<nk;i++)
-	{
-	  Nx[i] = Row.dot((Row)rows.elementAt(i),newRow);
-	  if (Nx[i] != 0)
-	    {
-	      zero = false;
-	      pivot = i;
-	    }
-	}
+  /** The type of engine used for the blocks */
+  int type;
 
-      // test if the new constraint was already consistent
+  /** The generation of this copy of the nullspace; engines with a
+   *  different generation are shared with other copies */
+  int generation = ++generations;
 
-      if (zero)
-	return true;
+  /** The last generation handed out */
+  static int generations = 0;
 
-      // select the entry with the smallest nonzero magnitude
-      // to minimize stability problems 
-      for(int i=0;i<nk;i++)
-	if (Nx[i] != 0 &&
-	    (Math.abs(Nx[i]) < Math.abs(Nx[pivot])))
-	  pivot = i;
+  /** Counts the constraints added that didn't already follow, so
+   *  that a result of follows() can be told to be out of date */
+  int version = 0;
 
-      if (DEBUG)
-	{
-	  System.out.print("pivot = "+pivot+", Nx=[");
-	  for(int i=0;i<nk;i++)
-	    System.out.print(Nx[i]+" ");
-	  System.out.println("]");
-	}
+  /** Remembered results of follows(), keyed by the canonical form of
+   *  the row tested.  A true result stays true as constraints are
+   *  added, so it is stored as Boolean.TRUE; a false result is stored
+   *  as the version it was computed at, as an Integer. */
+  Hashtable followsCache = new Hashtable();
 
-      // the new nullspace
-      Vector newRows = new Vector();
-      Row pivotRow = (Row)rows.elementAt(pivot);
+  /** The most results followsCache holds; it is emptied when full */
+  static final int FOLLOWS_CACHE_SIZE = 4096;
 
-      // compute the new nullspace from linear combinations of pairs
-      // of rows from the old nullspace
+  /** How often followsCache had the answer, and how often not */
+  static long cacheHits = 0, cacheMisses = 0;
 
-      for(int i=0;i<nk;i++)
-	{
-	  if (i==pivot)
-	    continue;
+  /** The number of variables the nullspace contains */
+  int numVariables = 0;
 
-	  Row r;
+  /** The number of calls to add(), addAll() and follows() (including
+   *  followsAll() and followsExactly()), and the time spent in them,
+   *  in nanoseconds.  Copies of the nullspace carry them on. */
+  long adds = 0, addTime = 0, follows = 0, followsTime = 0;
 
-	  if (Nx[i] == 0)
-//	    r = (Row)((Row)rows.elementAt(i)).clone();
-	    r = (Row)rows.elementAt(i);
-	  else
-	    r = Row.linComb(Nx[i],pivotRow,
-			    -Nx[pivot],(Row)rows.elementAt(i));
+  /** Print debugging output about the nullspace?  Can be switched at
+   *  run time, from the diagnostics window or the configuration */
+  static boolean debug = DEBUG;
 
-	  newRows.addElement(r);
-	}
+  /** Marks, in variables, a variable that was removed by compact().
+   *  It keeps its place in its block, in case it is used again. */
+  static final Object REMOVED = new Object();
 
-      rows = newRows;
+  /** Create an empty nullspace, with the configured engine type */
 
-      return false;
+  Nullspace()
+    {
+      this(engineType);
     }
 
-  /** Check if the given constraint is consistent with the nullspace
-   *
-   *  @return True if the constraint is consistent
-   */
+  /** Create an empty nullspace, with the given engine type */
 
-  boolean follows(Constraint c)
+  Nullspace(int type)
     {
-      // do this first to combine equivalent angles; might be zero
-      Row newRow = new Row(c);
-
-      if (DEBUG)
-	System.out.println("Testing "+newRow.toString());
+      this.type = type;
+    }
 
-      // Check if c contains any variables that N doesn't
-      for(int i=0;i<newRow.sources.size();i++)
-	{
-	  Object src = newRow.sources.elementAt(i);
+  /** Create an empty engine of the nullspace's type */
 
-	  if (src instanceof AngleMeasure)
-	    src = ((AngleMeasure)src).getEquivalent();
+  ProofEngine newEngine()
+    {
+      ProofEngine e;
 
-	  if (variables.indexOf(src) < 0)
-	    return false;
-	}
+      if (type == ECHELON_ENGINE)
+	e = new EchelonEngine();
+      else if (type == MODULAR_ENGINE)
+	e = new ModularEngine();
+      else
+	e = new NullspaceEngine();
 
-      int nk = rows.size();    // n-k = num vars - num constraints
+      e.generation = generation;
 
-      // compute N*x
+      return e;
+    }
 
-      for(int i=0;i<nk;i++)
-	{
-	  if (Row.dot(newRow,(Row)rows.elementAt(i)) != 0)
-	    return false;
-	}
+  /** Get the engine of a block, for reading only */
 
-      return true;
-    }      
+  ProofEngine block(int root)
+    {
+      return (ProofEngine)blocks.get(root);
+    }
 
-  /** Add a variable to the nullspace, by adding a row with a coefficient
-   *  of 1 for the new variable */
+  /** Get the engine of a block, so that it can be changed.  If the
+   *  engine is shared with another copy of the nullspace, it is
+   *  copied first. */
 
-  void addVariable(Object variable)
+  ProofEngine changeBlock(int root)
     {
-      Row r = new Row();
-      r.add(variable,1);
-      rows.addElement(r);
-      variables.addElement(variable);
+      ProofEngine e = (ProofEngine)blocks.get(root);
+
+      if (e.generation != generation)
+	{
+	  e = e.copy();
+	  e.generation = generation;
+	  blocks.set(root,e);
+	}
+
+      return e;
     }
 
-  /** Reset the nullspace */
+  /** Select the engine type for new nullspaces by name
+   *
+   *  @return  False if there is no engine with that name
+   */
 
-  void clear()
+  static boolean selectEngine(String name)
     {
-      rows.removeAllElements();
-      variables.removeAllElements();
+      for(int i=0;i<engineNames.length;i++)
+	if (engineNames[i].equals(name))
+	  {
+	    engineType = i;
+	    return true;
+	  }
+
+      return false;
     }
 
-  public String toString()
+  /** Add a constraint to the nullspace
+   *
+   *  @param  c  The new constraint
+   *  @return  True if the new constraint is already consistent with the
+   *           existing nullspace
+   */ 
+
+  boolean add(Constraint c)
     {
-      StringBuffer sb = new StringBuffer("(");
+      long start = System.nanoTime();
 
-      for(int i=0;i<rows.size();i++)
-	{
-	  sb.append(rows.elementAt(i).toString());
-	  if (i+1<rows.size())
-	    sb.append(",\n   ");
-	}
+      // Convert the Constraint into a Row, adding any variables
+      // that the nullspace doesn't contain yet
+      boolean result = add(makeRow(c,true),idOf(c));
 
-      sb.append(")");
+      adds ++;
+      addTime += System.nanoTime()-start;
 
-      return new String(sb);
+      return result;
     }
 
-  public Object clone()
-  {
-    Nullspace n = new Nullspace();
-    n.rows = (Vector)rows.clone();
-    n.variables = (Vector)variables.clone();
+  /** The id of a constraint, handing out a new one if it has none.
+   *  Only assumptions get one: the constraints of a construction step
+   *  are only ever taken out again by restoring the nullspace saved
+   *  before the step, so they aren't worth tracking. */
+
+  static int idOf(Constraint c)
+    {
+      if (c.id == 0 && c.assumption)
+	c.id = ++Constraint.lastId;
+
+      return c.id;
+    }
+
+  /** Add a row to the nullspace
+   *
+   *  @param id  The id of the constraint the row was made from
+   *  @return  True if the row is already consistent with the
+   *           existing nullspace
+   */
+
+  boolean add(Row newRow,int id)
+    {
+      if (newRow.size() == 0)
+	return true;
+
+      Row key = newRow.canonical();
+
+      if (followsCache.get(key) == Boolean.TRUE)
+	{
+	  cacheHits ++;
+
+	  // the engines still keep it, in case what it follows from is
+	  // retracted
+	  addFollowing(newRow,id);
+	  return true;
+	}
+
+      // either way, the row follows from now on
+      remember(key,Boolean.TRUE);
+
+      if (addToBlock(newRow,id))
+	return true;
+
+      version ++;
+
+      return false;
+    }
+
+  /** Keep a row that is known to be consistent.  Its part in each
+   *  block is consistent with that block, so the blocks are not
+   *  merged. */
+
+  void addFollowing(Row row,int id)
+    {
+      int[] roots = new int[row.size()];
+      for(int i=0;i<roots.length;i++)
+	roots[i] = find(row.vars[i]);
+
+      for(int i=0;i<roots.length;i++)
+	if (firstOfBlock(roots,i))
+	  changeBlock(roots[i]).addFollowing(localRow(row,roots,roots[i]),id);
+    }
+
+  /** Is roots[i] the first occurrence of that root? */
+
+  static boolean firstOfBlock(int[] roots,int i)
+    {
+      for(int j=0;j<i;j++)
+	if (roots[j] == roots[i])
+	  return false;
+
+      return true;
+    }
+
+  /** Retract a constraint that was added to the nullspace, so that it
+   *  holds what the other added constraints prove.  Only the blocks
+   *  with rows made from the constraint are changed.  Only assumptions
+   *  can be retracted, and not if they were added before the nullspace
+   *  was last compacted.
+   *
+   *  @return  False if the constraint can't be retracted
+   */
+
+  boolean retract(Constraint c)
+    {
+      Row row = makeRow(c,false);
+
+      if (c.id == 0 || row == null)
+	return false;
+
+      int[] roots = new int[row.size()];
+      for(int i=0;i<roots.length;i++)
+	roots[i] = find(row.vars[i]);
+
+      boolean retracted = false;
+
+      for(int i=0;i<roots.length;i++)
+	if (firstOfBlock(roots,i) && block(roots[i]).hasSource(c.id))
+	  {
+	    changeBlock(roots[i]).retract(c.id);
+	    retracted = true;
+	  }
+
+      if (retracted)
+	{
+	  // rows that followed may not any more
+	  followsCache = new Hashtable();
+	  version ++;
+	}
+
+      return retracted;
+    }
+
+  /** Add a row to the block it belongs in, merging blocks as needed
+   *
+   *  @param id  The id of the constraint the row was made from
+   *  @return  True if the row was already consistent
+   */
+
+  boolean addToBlock(Row newRow,int id)
+    {
+      // merge all the blocks that the row touches
+      int root = find(newRow.vars[0]);
+
+      for(int i=1;i<newRow.size();i++)
+	root = union(root,find(newRow.vars[i]));
+
+      int[] roots = new int[newRow.size()];
+      for(int i=0;i<roots.length;i++)
+	roots[i] = find(newRow.vars[i]);
+
+      return changeBlock(root).add(localRow(newRow,roots,root),id);
+    }
+
+  /** Check if the given constraint is consistent with the nullspace
+   *
+   *  @return True if the constraint is consistent
+   */
+
+  boolean follows(Constraint c)
+    {
+      long start = System.nanoTime();
+
+      // Convert the Constraint into a Row.  If c contains any
+      // variables that N doesn't, it can't be consistent
+      Row newRow = makeRow(c,false);
+      boolean result = false;
+
+      if (newRow != null)
+	{
+	  if (debug)
+	    System.out.println("Testing "+
+			       newRow.toString(variables.toArray()));
+
+	  result = cachedFollows(newRow);
+	}
+
+      follows ++;
+      followsTime += System.nanoTime()-start;
+
+      return result;
+    }      
+
+  /** Check if a row is consistent with the nullspace, using the
+   *  remembered result if there is one that is still valid */
+
+  boolean cachedFollows(Row row)
+    {
+      Row key = row.canonical();
+      Object cached = followsCache.get(key);
+
+      if (cached == Boolean.TRUE ||
+	  (cached != null && ((Integer)cached).intValue() == version))
+	{
+	  cacheHits ++;
+	  return cached == Boolean.TRUE;
+	}
+
+      cacheMisses ++;
+
+      boolean result = follows(row,false);
+      remember(key,result ? (Object)Boolean.TRUE : Integer.valueOf(version));
+
+      return result;
+    }
+
+  /** Store a result in followsCache */
+
+  void remember(Row key,Object result)
+    {
+      if (followsCache.size() >= FOLLOWS_CACHE_SIZE)
+	followsCache.clear();
+
+      followsCache.put(key,result);
+    }
+
+  /** Report how often followsCache had the answer */
+
+  static String cacheStatistics()
+    {
+      long total = cacheHits+cacheMisses;
+
+      return "follows cache: "+cacheHits+" hits, "+cacheMisses+" misses"+
+	(total > 0 ? " ("+(100*cacheHits/total)+"% hit rate)" : "");
+    }
+
+  /** Check if the given constraint is consistent with the nullspace,
+   *  using exact arithmetic even if the engine normally doesn't
+   *
+   *  @return True if the constraint is consistent
+   */
+
+  boolean followsExactly(Constraint c)
+    {
+      long start = System.nanoTime();
+
+      Row newRow = makeRow(c,false);
+      boolean result = (newRow != null && follows(newRow,true));
+
+      follows ++;
+      followsTime += System.nanoTime()-start;
+
+      return result;
+    }
+
+  /** Add a batch of constraints to the nullspace, in order.  This
+   *  does the work of testing each constraint and adding it if it
+   *  doesn't follow, but converts each constraint to a row only once.
+   *  A constraint identical to an earlier one in the batch is found by
+   *  its interned terms, and follows without being tested.
+   *
+   *  @return  For each constraint, true if it was already consistent
+   *           with the nullspace and the constraints before it in the
+   *           batch.  The others have been added.
+   */
+
+  boolean[] addAll(Vector constraints)
+    {
+      long start = System.nanoTime();
+      boolean[] result = new boolean[constraints.size()];
+
+      // the rows of the constraints so far, by their terms
+      Hashtable rows = new Hashtable();
+
+      for(int i=0;i<result.length;i++)
+	{
+	  Constraint c = (Constraint)constraints.elementAt(i);
+	  Terms t = c.terms();
+	  Row row = (Row)rows.get(t);
+
+	  if (row == null)
+	    {
+	      row = makeRow(c,true);
+	      rows.put(t,row);
+	      result[i] = add(row,idOf(c));
+	    }
+	  else
+	    {
+	      // it still has to be kept, in case the first is retracted
+	      if (row.size() > 0)
+		addFollowing(row,idOf(c));
+	      result[i] = true;
+	    }
+	}
+
+      adds += result.length;
+      addTime += System.nanoTime()-start;
+
+      return result;
+    }
+
+  /** Check a batch of constraints against the nullspace.  A
+   *  constraint identical to an earlier one in the batch gets the same
+   *  answer without being tested, as in addAll().
+   *
+   *  @return  For each constraint, true if it is consistent
+   */
+
+  boolean[] followsAll(Vector constraints)
+    {
+      long start = System.nanoTime();
+      boolean[] result = new boolean[constraints.size()];
+
+      // the index of the first constraint with each terms
+      Hashtable first = new Hashtable();
+
+      for(int i=0;i<result.length;i++)
+	{
+	  Constraint c = (Constraint)constraints.elementAt(i);
+	  Terms t = c.terms();
+	  Integer j = (Integer)first.get(t);
+
+	  if (j != null)
+	    result[i] = result[j.intValue()];
+	  else
+	    {
+	      Row row = makeRow(c,false);
+
+	      first.put(t,Integer.valueOf(i));
+	      result[i] = (row != null && cachedFollows(row));
+	    }
+	}
+
+      follows += result.length;
+      followsTime += System.nanoTime()-start;
+
+      return result;
+    }
+
+  /** Check if a row is consistent with the nullspace.  The proven
+   *  space is the sum of the spaces of the blocks, so the row is
+   *  consistent if its part in each block is.
+   *
+   *  @param exactly  Should the engines use exact arithmetic?
+   */
+
+  boolean follows(Row row,boolean exactly)
+    {
+      int[] roots = new int[row.size()];
+      for(int i=0;i<roots.length;i++)
+	roots[i] = find(row.vars[i]);
+
+      for(int i=0;i<roots.length;i++)
+	{
+	  int root = roots[i];
+
+	  // test each block once, at its first variable in the row
+	  if (!firstOfBlock(roots,i))
+	    continue;
+
+	  Row part = localRow(row,roots,root);
+
+	  if (!(exactly ? block(root).followsExactly(part) :
+		block(root).follows(part)))
+	    return false;
+	}
+
+      return true;
+    }
+
+  /** Find the root of the block containing a variable.  The path to
+   *  the root is compressed, so that afterwards the variable's parent
+   *  is the root and its offset is its local number.
+   */
+
+  int find(int id)
+    {
+      int root = id;
+      int local = 0;
+
+      while (parent.get(root) != root)
+	{
+	  local += offset.get(root);
+	  root = parent.get(root);
+	}
+
+      while (id != root)
+	{
+	  int next = parent.get(id);
+	  int nextLocal = local-offset.get(id);
+
+	  if (next != root)
+	    {
+	      parent.set(id,root);
+	      offset.set(id,local);
+	    }
+
+	  id = next;
+	  local = nextLocal;
+	}
+
+      return root;
+    }
+
+  /** Merge the blocks with the given roots.  The smaller block is
+   *  added to the larger one, and its variables are numbered after
+   *  those of the larger one.
+   *
+   *  @return  The root of the merged block
+   */
+
+  int union(int a,int b)
+    {
+      if (a == b)
+	return a;
+
+      if (blockSize.get(a) < blockSize.get(b))
+	{
+	  int t = a;
+	  a = b;
+	  b = t;
+	}
+
+      changeBlock(a).merge(block(b),blockSize.get(a));
+      blocks.set(b,null);
+
+      parent.set(b,a);
+      offset.set(b,blockSize.get(a));
+      blockSize.set(a,blockSize.get(a)+blockSize.get(b));
+
+      return a;
+    }
+
+  /** Generate the part of a row that lies in one block, using the
+   *  local numbers of the variables.  The variables must have been
+   *  passed to find() since the last merge.
+   *
+   *  @param roots  The root of each variable in the row
+   *  @param root  The root of the block
+   */
+
+  Row localRow(Row row,int[] roots,int root)
+    {
+      int[] vars = new int[row.size()];
+      long[] weights = new long[row.size()];
+      int m = 0;
+
+      for(int i=0;i<row.size();i++)
+	if (roots[i] == root)
+	  {
+	    int local = offset.get(row.vars[i]);
+
+	    int k = m++;
+	    while (k > 0 && vars[k-1] > local)
+	      {
+		vars[k] = vars[k-1];
+		weights[k] = weights[k-1];
+		k--;
+	      }
+
+	    vars[k] = local;
+	    weights[k] = row.weights[i];
+	  }
+
+      return new Row(vars,weights,m);
+    }
+
+  /** Generate a row from a constraint.  The generic form of its
+   *  terms is made once for all constraints with the same terms, and
+   *  the row shares it.
+   *
+   *  @param c  The constraint to convert
+   *  @param addNew  Should variables missing from the nullspace be added?
+   *  @return  The new row, or null if addNew is false and c contains
+   *           a variable that the nullspace doesn't
+   */
+
+  Row makeRow(Constraint c,boolean addNew)
+    {
+      Terms t = c.terms();
+      t.makeGeneric();
+
+      int[] ids = t.genericIds;
+
+      // check for variables the nullspace doesn't contain
+      for(int i=0;i<ids.length;i++)
+	if (!contains(ids[i]))
+	  {
+	    if (!addNew)
+	      return null;
+
+	    addVariable(t.genericVariables[i],ids[i]);
+	  }
+
+      return new Row(ids,t.genericWeights,ids.length);
+    }
+
+  /** Does the nullspace contain the variable with the given id? */
+
+  boolean contains(int id)
+    {
+      Object v = variables.get(id);
+
+      return v != null && v != REMOVED;
+    }
+
+  /** Add a variable to the nullspace */
+
+  void addVariable(Object variable,int id)
+    {
+      numVariables ++;
+
+      if (variables.get(id) == REMOVED)
+	{
+	  // the variable is used again, with no constraints on it
+	  int root = find(id);
+
+	  changeBlock(root).addVariable(offset.get(id));
+	  variables.set(id,variable);
+	  return;
+	}
+
+      // the variable starts out in a block of its own
+      ProofEngine e = newEngine();
+      e.addVariable(0);
+
+      variables.set(id,variable);
+      parent.set(id,id);
+      offset.set(id,0);
+      blockSize.set(id,1);
+      blocks.set(id,e);
+    }
+
+  /** Remove the variables that don't belong to the given shapes.
+   *  They are eliminated from the proven space, so that it holds
+   *  exactly the proven constraints among the remaining variables.
+   *
+   *  @param shapes  The shapes still in use
+   *  @return  The number of variables removed
+   */
+
+  int compact(Vector shapes)
+    {
+      Hashtable live = new Hashtable();
+      for(int i=0;i<shapes.size();i++)
+	live.put(shapes.elementAt(i),shapes.elementAt(i));
+
+      // the local numbers of the dead variables, by block
+      Hashtable dead = new Hashtable();
+      int removed = 0;
+
+      for(int i=0;i<variables.capacity();i++)
+	{
+	  Object v = variables.get(i);
+
+	  if (v == null || v == REMOVED || isLive(v,live))
+	    continue;
+
+	  Integer root = Integer.valueOf(find(i));
+	  IntList locals = (IntList)dead.get(root);
+
+	  if (locals == null)
+	    {
+	      locals = new IntList();
+	      dead.put(root,locals);
+	    }
+
+	  locals.add(offset.get(i));
+	  variables.set(i,REMOVED);
+	  removed ++;
+	}
+
+      for(Enumeration e=dead.keys();e.hasMoreElements();)
+	{
+	  Integer root = (Integer)e.nextElement();
+	  changeBlock(root.intValue()).project((IntList)dead.get(root));
+	}
+
+      if (removed > 0)
+	{
+	  // remembered results may mention the removed variables
+	  followsCache = new Hashtable();
+	  version ++;
+	  numVariables -= removed;
+	}
+
+      return removed;
+    }
+
+  /** Does a variable belong to the given shapes?  A measure does if
+   *  all of its points do, and an angle if its apex does. */
+
+  static boolean isLive(Object variable,Hashtable shapes)
+    {
+      if (variable instanceof MeasureDependency)
+	{
+	  Shape[] parents = ((MeasureDependency)variable).parents;
+
+	  for(int i=0;i<parents.length;i++)
+	    if (!shapes.containsKey(parents[i]))
+	      return false;
+	}
+      else if (variable instanceof UniqueAngle)
+	return shapes.containsKey(((UniqueAngle)variable).apex1.p);
+
+      return true;
+    }
+
+  /** Measure the size of the nullspace and the work it has done */
+
+  NullspaceMetrics metrics()
+    {
+      NullspaceMetrics m = new NullspaceMetrics();
+
+      m.variables = numVariables;
+      m.adds = adds;
+      m.addTime = addTime;
+      m.follows = follows;
+      m.followsTime = followsTime;
+
+      for(int i=0;i<blocks.capacity();i++)
+	if (block(i) != null)
+	  {
+	    m.blocks ++;
+	    block(i).measure(m);
+	  }
+
+      return m;
+    }
+
+  /** Reset the nullspace */
+
+  void clear()
+    {
+      variables = new PersistentArray();
+      parent = new PersistentIntArray();
+      offset = new PersistentIntArray();
+      blocks = new PersistentArray();
+      blockSize = new PersistentIntArray();
+      followsCache = new Hashtable();
+      version ++;
+      numVariables = 0;
+    }
+
+  public String toString()
+    {
+      // the names of the variables of each block, by local number
+      Object[][] names = new Object[variables.capacity()][];
+
+      for(int i=0;i<names.length;i++)
+	if (contains(i))
+	  {
+	    int root = find(i);
+
+	    if (names[root] == null)
+	      names[root] = new Object[blockSize.get(root)];
+	    names[root][offset.get(i)] = variables.get(i);
+	  }
+
+      StringBuffer sb = new StringBuffer();
+
+      for(int i=0;i<names.length;i++)
+	if (block(i) != null)
+	  {
+	    if (sb.length() > 0)
+	      sb.append(",\n");
+	    sb.append(block(i).toString(names[i]));
+	  }
+
+      return new String(sb);
+    }
+
+  public Object clone()
+  {
+    Nullspace n = new Nullspace(type);
+    n.variables = variables.copy();
+    n.parent = parent.copy();
+    n.offset = offset.copy();
+    n.blockSize = blockSize.copy();
+    n.blocks = blocks.copy();
+
+    // the cache is not shared: results found by one copy from now on
+    // may not hold for the other
+    n.version = version;
+    n.numVariables = numVariables;
+    n.adds = adds;
+    n.addTime = addTime;
+    n.follows = follows;
+    n.followsTime = followsTime;
+
+    // neither copy may change the engines they now share
+    generation = ++generations;
 
     return n;
   }
 }
 
-/** One row in a matrix.  Variables not explicitly listed in the
- *  list of sources have a coefficient of zero in the row.
- *
- *  Angle measurements have a generic representation in order
- *  to guarantee that identical angles with different names will
- *  be treated as the same variable.
- */
+/** One row in a matrix.  Variables not explicitly listed in the
+ *  row have a coefficient of zero in the row.
+ *
+ *  The row is stored as a sorted array of variable ids, with a
+ *  parallel array of coefficients, so that products of rows can be
+ *  computed by merging.  Rows are not changed after they are created.
+ *
+ *  Coefficients are kept as longs, and arithmetic on them is checked
+ *  for overflow.  Only rows whose coefficients do not fit in a long
+ *  are kept as BigIntegers.  The result of a linear combination is
+ *  divided by the GCD of its coefficients, which keeps them from
+ *  growing without bound as constraints are added.
+ */
+
+class Row
+{
+  /** The ids of the variables in the row, in increasing order */
+  int[] vars;
+
+  /** The coefficient for each variable (never zero).  Null if the
+   *  coefficients are too large for a long; see bigWeights */
+  long[] weights;
+
+  /** The coefficients of the row, if they don't all fit in a long.
+   *  Null otherwise */
+  BigInteger[] bigWeights = null;
+
+  /** The hash code, or 0 if it hasn't been computed yet */
+  int hash = 0;
+
+  /** Work space for linComb(), reused between calls */
+  static int[] scratchVars = new int[16];
+
+  /** Work space for linComb(), reused between calls */
+  static long[] scratchWeights = new long[16];
+
+  // how often each arithmetic path has been taken
+
+  /** Number of dot products computed with longs */
+  static long fastProducts = 0;
+
+  /** Number of dot products that needed BigIntegers */
+  static long slowProducts = 0;
+
+  /** Number of linear combinations computed with longs */
+  static long fastCombinations = 0;
+
+  /** Number of linear combinations that needed BigIntegers */
+  static long slowCombinations = 0;
+
+  /** Generate a row containing a single variable */
+
+  Row(int var,long weight)
+    {
+      vars = new int[1];
+      weights = new long[1];
+      vars[0] = var;
+      weights[0] = weight;
+    }
+
+  /** Generate a row from the first n entries of two arrays.  The
+   *  variables must already be sorted.  The arrays are copied if
+   *  they are longer than n.
+   */
+
+  Row(int[] v,long[] w,int n)
+    {
+      if (v.length == n)
+	{
+	  vars = v;
+	  weights = w;
+	}
+      else
+	{
+	  vars = new int[n];
+	  weights = new long[n];
+	  System.arraycopy(v,0,vars,0,n);
+	  System.arraycopy(w,0,weights,0,n);
+	}
+    }
+
+  /** Generate a row with large coefficients.  The coefficients are
+   *  stored as longs if they all fit. */
+
+  Row(int[] v,BigInteger[] w)
+    {
+      vars = v;
+
+      for(int i=0;i<w.length;i++)
+	if (w[i].bitLength() > 62)
+	  {
+	    bigWeights = w;
+	    return;
+	  }
+
+      weights = new long[w.length];
+      for(int i=0;i<w.length;i++)
+	weights[i] = w[i].longValue();
+    }
+
+  /** Generate a copy of the row without some of its variables
+   *
+   *  @param remove  Flags for the variables to leave out, indexed by id
+   */
+
+  Row remove(boolean[] remove)
+    {
+      int n = 0;
+
+      for(int i=0;i<vars.length;i++)
+	if (vars[i] >= remove.length || !remove[vars[i]])
+	  n++;
+
+      if (n == vars.length)
+	return this;
+
+      int[] v = new int[n];
+      long[] w = (weights != null ? new long[n] : null);
+      BigInteger[] bw = (weights == null ? new BigInteger[n] : null);
+      n = 0;
+
+      for(int i=0;i<vars.length;i++)
+	if (vars[i] >= remove.length || !remove[vars[i]])
+	  {
+	    v[n] = vars[i];
+	    if (w != null)
+	      w[n] = weights[i];
+	    else
+	      bw[n] = bigWeights[i];
+	    n++;
+	  }
+
+      return (w != null ? new Row(v,w,n) : new Row(v,bw));
+    }
+
+  /** Generate a copy of the row with a number added to every
+   *  variable id.  The coefficients are shared. */
+
+  Row shift(int offset)
+    {
+      int[] v = new int[vars.length];
+
+      for(int i=0;i<v.length;i++)
+	v[i] = vars[i]+offset;
+
+      if (weights != null)
+	return new Row(v,weights,v.length);
+      else
+	return new Row(v,bigWeights);
+    }
+
+  /** Find the position of a variable in the row
+   *
+   *  @return  The position, or -1 if the variable isn't in the row
+   */
+
+  int indexOf(int var)
+    {
+      int lo = 0;
+      int hi = vars.length-1;
+
+      // binary search for the variable
+      while (lo <= hi)
+	{
+	  int mid = (lo+hi) >>> 1;
+
+	  if (vars[mid] < var)
+	    lo = mid+1;
+	  else if (vars[mid] > var)
+	    hi = mid-1;
+	  else
+	    return mid;
+	}
+
+      return -1;
+    }
+
+  /** Get the weight of a variable */
+
+  BigInteger getWeight(int var)
+    {
+      int i = indexOf(var);
+
+      return (i >= 0 ? weight(i) : BigInteger.ZERO);
+    }
+
+  /** Get the i'th coefficient as a BigInteger */
+
+  BigInteger weight(int i)
+    {
+      return (bigWeights != null ? bigWeights[i] :
+	      BigInteger.valueOf(weights[i]));
+    }
+
+  /** Compute the dot product of two rows, using longs.
+   *
+   *  @exception ArithmeticException  Thrown if the product does not fit
+   *             in a long, or either row has large coefficients.  Use
+   *             bigDot() instead.
+   */
+
+  static long dot(Row r1,Row r2)
+    {
+      if (r1.weights == null || r2.weights == null)
+	throw new ArithmeticException("Row has large coefficients");
+
+      int[] v1 = r1.vars;
+      int[] v2 = r2.vars;
+      long sum = 0;
+      int i = 0;
+      int j = 0;
+
+      // merge the two lists of variables; only common variables
+      // contribute to the product
+      while (i < v1.length && j < v2.length)
+	{
+	  if (v1[i] < v2[j])
+	    i++;
+	  else if (v1[i] > v2[j])
+	    j++;
+	  else
+	    sum = Math.addExact(sum,Math.multiplyExact(r1.weights[i++],
+						       r2.weights[j++]));
+	}
+
+      // keep clear of Long.MIN_VALUE, which has no negation
+      if (sum == Long.MIN_VALUE)
+	throw new ArithmeticException("long overflow");
+
+      fastProducts ++;
+
+      return sum;
+    }
+
+  /** Compute the dot product of two rows, using BigIntegers */
+
+  static BigInteger bigDot(Row r1,Row r2)
+    {
+      int[] v1 = r1.vars;
+      int[] v2 = r2.vars;
+      BigInteger sum = BigInteger.ZERO;
+      int i = 0;
+      int j = 0;
+
+      while (i < v1.length && j < v2.length)
+	{
+	  if (v1[i] < v2[j])
+	    i++;
+	  else if (v1[i] > v2[j])
+	    j++;
+	  else
+	    sum = sum.add(r1.weight(i++).multiply(r2.weight(j++)));
+	}
+
+      slowProducts ++;
+
+      return sum;
+    }
+
+  /** Check if the dot product of two rows is zero.  Uses longs if
+   *  possible. */
+
+  static boolean isOrthogonal(Row r1,Row r2)
+    {
+      try
+	{
+	  return dot(r1,r2) == 0;
+	}
+      catch (ArithmeticException ae)
+	{
+	  return bigDot(r1,r2).signum() == 0;
+	}
+    }
+
+  /** Generate the linear combination of two rows, divided by the
+   *  greatest common divisor of its coefficients.  The multipliers
+   *  are reduced by their own GCD first.
+   *
+   *  Produces (w1*r1 + w2 * r2)/g
+   */
+
+  static Row linComb(long w1,Row r1,long w2,Row r2)
+    {
+      long g = gcd(w1,w2);
+
+      w1 /= g;
+      w2 /= g;
+
+      if (r1.weights != null && r2.weights != null)
+	{
+	  try
+	    {
+	      Row r = fastLinComb(w1,r1,w2,r2);
+	      fastCombinations ++;
+	      return r;
+	    }
+	  catch (ArithmeticException ae)
+	    {
+	      // fall through to the slow path
+	    }
+	}
+
+      return bigLinComb(BigInteger.valueOf(w1),r1,BigInteger.valueOf(w2),r2);
+    }
+
+  /** Generate the linear combination of two rows, with large
+   *  multipliers.  Uses longs if possible.
+   */
+
+  static Row linComb(BigInteger w1,Row r1,BigInteger w2,Row r2)
+    {
+      BigInteger g = w1.gcd(w2);
+
+      w1 = w1.divide(g);
+      w2 = w2.divide(g);
+
+      if (w1.bitLength() <= 62 && w2.bitLength() <= 62)
+	return linComb(w1.longValue(),r1,w2.longValue(),r2);
+
+      return bigLinComb(w1,r1,w2,r2);
+    }
+
+  /** Eliminate a variable from a row, using another row that also
+   *  contains it.
+   *
+   *  Produces p*r - t*pivotRow (divided by its GCD), where p and t are
+   *  the coefficients of the variable in pivotRow and r
+   */
+
+  static Row eliminate(Row r,Row pivotRow,int var)
+    {
+      int i = r.indexOf(var);
+      int j = pivotRow.indexOf(var);
+
+      if (r.weights != null && pivotRow.weights != null)
+	return linComb(pivotRow.weights[j],r,-r.weights[i],pivotRow);
+
+      return linComb(pivotRow.weight(j),r,r.weight(i).negate(),pivotRow);
+    }
+
+  /** Compute a linear combination with longs.
+   *
+   *  @exception ArithmeticException  Thrown if a coefficient overflows
+   */
+
+  static Row fastLinComb(long w1,Row r1,long w2,Row r2)
+    {
+      int[] v1 = r1.vars;
+      int[] v2 = r2.vars;
+      int n = v1.length + v2.length;
+
+      if (scratchVars.length < n)
+	{
+	  scratchVars = new int[2*n];
+	  scratchWeights = new long[2*n];
+	}
+
+      int[] sv = scratchVars;
+      long[] sw = scratchWeights;
+      int i = 0;
+      int j = 0;
+      int m = 0;
+      long g = 0;
 
-class Row
-{
-  /** The list of variables in the row */
-  Vector sources = new Vector();
+      // merge the two rows, dropping any terms that cancel
+      while (i < v1.length || j < v2.length)
+	{
+	  int var;
+	  long weight;
+
+	  if (j == v2.length || (i < v1.length && v1[i] < v2[j]))
+	    {
+	      var = v1[i];
+	      weight = Math.multiplyExact(w1,r1.weights[i++]);
+	    }
+	  else if (i == v1.length || v1[i] > v2[j])
+	    {
+	      var = v2[j];
+	      weight = Math.multiplyExact(w2,r2.weights[j++]);
+	    }
+	  else
+	    {
+	      var = v1[i];
+	      weight = Math.addExact(Math.multiplyExact(w1,r1.weights[i++]),
+				     Math.multiplyExact(w2,r2.weights[j++]));
+	    }
 
-  /** The list of coefficients for each variable */
-  Vector weights = new Vector();
+	  if (weight == Long.MIN_VALUE)
+	    throw new ArithmeticException("long overflow");
 
-  Row() {}
-  
-  /** Generate a new row from a constraint */
+	  if (weight != 0)
+	    {
+	      sv[m] = var;
+	      sw[m++] = weight;
+	      g = gcd(g,weight);
+	    }
+	}
+
+      int[] nv = new int[m];
+      long[] nw = new long[m];
+      System.arraycopy(sv,0,nv,0,m);
 
-  Row(Constraint c)
-    { 
-      sources = (Vector)c.sources.clone();
-      weights = (Vector)c.weights.clone();
+      // divide out the common factor
+      for(int k=0;k<m;k++)
+	nw[k] = sw[k] / g;
 
-      int i=0;
-      int index;
-      int weight;
+      return new Row(nv,nw,m);
+    }
+
+  /** Compute a linear combination with BigIntegers */
 
-      // convert angles to their generic equivalent, and consolidate
-      // any duplicates
-      while (i<sources.size())
+  static Row bigLinComb(BigInteger w1,Row r1,BigInteger w2,Row r2)
+    {
+      int[] v1 = r1.vars;
+      int[] v2 = r2.vars;
+      int n = v1.length + v2.length;
+
+      int[] sv = new int[n];
+      BigInteger[] sw = new BigInteger[n];
+      int i = 0;
+      int j = 0;
+      int m = 0;
+      BigInteger g = BigInteger.ZERO;
+
+      while (i < v1.length || j < v2.length)
 	{
-	  Object src = sources.elementAt(i);
+	  int var;
+	  BigInteger weight;
 
-	  if (src instanceof AngleMeasure)
+	  if (j == v2.length || (i < v1.length && v1[i] < v2[j]))
+	    {
+	      var = v1[i];
+	      weight = w1.multiply(r1.weight(i++));
+	    }
+	  else if (i == v1.length || v1[i] > v2[j])
 	    {
-	      // get the generic equivalent of this angle
-	      Unique newSrc = ((AngleMeasure)src).getEquivalent();
-
-	      index = sources.indexOf(newSrc);
-	      
-	      // check if this equivalent is already in the list of variables
-	      if (index < 0)
-		{
-		  sources.setElementAt(newSrc,i);
-		  i++;
-		}
-	      else
-		{
-		  // combine the two identical angles
-		  weight = ((Integer)weights.elementAt(i)).intValue()+
-		    ((Integer)weights.elementAt(index)).intValue();
-
-		  weights.setElementAt(new Integer(weight),index);
-
-		  sources.removeElementAt(i);
-		  weights.removeElementAt(i);
-
-		  if (weight == 0)
-		    {
-		      sources.removeElementAt(index);
-		      weights.removeElementAt(index);
-
-		      if (index < i)
-			i--;
-		    }
-		}
+	      var = v2[j];
+	      weight = w2.multiply(r2.weight(j++));
 	    }
 	  else
-	    i++;
+	    {
+	      var = v1[i];
+	      weight = w1.multiply(r1.weight(i++)).
+		add(w2.multiply(r2.weight(j++)));
+	    }
+
+	  if (weight.signum() != 0)
+	    {
+	      sv[m] = var;
+	      sw[m++] = weight;
+	      g = g.gcd(weight);
+	    }
 	}
+
+      int[] nv = new int[m];
+      BigInteger[] nw = new BigInteger[m];
+      System.arraycopy(sv,0,nv,0,m);
+
+      for(int k=0;k<m;k++)
+	nw[k] = sw[k].divide(g);
+
+      slowCombinations ++;
+
+      return new Row(nv,nw);
     }
 
-  /** Add a variable to the row, with a given coefficient */
+  /** The greatest common divisor of two longs; always positive, unless
+   *  both are zero.  Neither argument may be Long.MIN_VALUE. */
 
-  void add(Object source,int weight)
+  static long gcd(long a,long b)
     {
-      sources.addElement(source);
-      weights.addElement(new Integer(weight));
+      a = Math.abs(a);
+      b = Math.abs(b);
+
+      while (b != 0)
+	{
+	  long t = a % b;
+	  a = b;
+	  b = t;
+	}
+
+      return a;
     }
 
-  /** Get the weight of a variable */
+  /** Return the number of variables in the row */
 
-  int getWeight(Object source)
+  int size()
     {
-      int index = sources.indexOf(source);
-      return (index >= 0 ? ((Integer)weights.elementAt(index)).intValue() : 0);
+      return vars.length;
     }
 
-  /** Compute the dot product of two rows */
+  /** Return the row scaled so that its coefficients have no common
+   *  factor and the first one is positive.  Rows that are multiples
+   *  of each other have the same canonical form.  Rows with large
+   *  coefficients are returned as they are.
+   */
+
+  Row canonical()
+    {
+      if (weights == null || vars.length == 0)
+	return this;
+
+      long g = 0;
+      for(int i=0;i<weights.length;i++)
+	g = gcd(g,weights[i]);
+
+      if (weights[0] < 0)
+	g = -g;
+
+      if (g == 1)
+	return this;
 
-  static int dot(Row r1,Row r2)
+      long[] w = new long[weights.length];
+      for(int i=0;i<w.length;i++)
+	w[i] = weights[i]/g;
+
+      return new Row(vars,w,vars.length);
+    }
+
+  public int hashCode()
     {
-      int sum = 0;
-      for(int i=0;i<r1.sources.size();i++)
+      if (hash == 0)
 	{
-	  Object s = r1.sources.elementAt(i);
-	  int w1 = ((Integer)r1.weights.elementAt(i)).intValue();
-	  int w2 = r2.getWeight(s);
+	  int h = 1;
+
+	  for(int i=0;i<vars.length;i++)
+	    {
+	      long w = (weights != null ? weights[i] :
+			bigWeights[i].longValue());
+
+	      h = 31*(31*h+vars[i])+(int)(w ^ (w >>> 32));
+	    }
 
-	  sum += (w1 * w2);
+	  hash = h;
 	}
 
-      return sum;
+      return hash;
+    }
+
+  public boolean equals(Object o)
+    {
+      if (!(o instanceof Row))
+	return false;
+
+      Row r = (Row)o;
+
+      if (r.vars.length != vars.length ||
+	  (r.weights == null) != (weights == null))
+	return false;
+
+      for(int i=0;i<vars.length;i++)
+	if (r.vars[i] != vars[i] ||
+	    (weights != null ? r.weights[i] != weights[i] :
+	     !r.bigWeights[i].equals(bigWeights[i])))
+	  return false;
+
+      return true;
+    }
+
+  /** Report how often the long and BigInteger paths have been taken */
+
+  static String statistics()
+    {
+      return "products: "+fastProducts+" fast, "+slowProducts+" slow; "+
+	"combinations: "+fastCombinations+" fast, "+slowCombinations+
+	" slow";
     }
 
-  /** Generate the linear combination of two rows
+  /** Generate a textual representation, using the names of the
+   *  variables
    *
-   *  Produces w1*r1 + w2 * r2
+   *  @param variables  The variables the row refers to, indexed by id
    */
 
-  static Row linComb(int w1,Row r1,int w2,Row r2)
+  String toString(Object[] variables)
     {
-      Row newRow = new Row();
-
-      for(int i=0;i<r1.size();i++)
+      StringBuffer sb = new StringBuffer("R(");
+      for(int i=0;i<vars.length;i++)
 	{
-	  Object src = r1.sources.elementAt(i);
-	  int wa = ((Integer)r1.weights.elementAt(i)).intValue();
-	  int wb = r2.getWeight(src);
+	  sb.append(weight(i));
+	  sb.append(variables[vars[i]].toString());
+	  if (i<vars.length-1)
+	    sb.append(",");
+	}
+      sb.append(")");
 
-	  int newWeight = w1*wa+w2*wb;
+      return new String(sb);
+    }
 
-	  if (newWeight != 0)
-	    newRow.add(src,newWeight);
+  public String toString()
+    {
+      StringBuffer sb = new StringBuffer("R(");
+      for(int i=0;i<vars.length;i++)
+	{
+	  sb.append(weight(i)+"#"+vars[i]);
+	  if (i<vars.length-1)
+	    sb.append(",");
 	}
+      sb.append(")");
+
+      return new String(sb);
+    }
+}
+
+/** A growable list of ints.  Used for the index of the nullspace, and
+ *  for the links of line orders. */
+
+class IntList implements Cloneable
+{
+  /** The elements of the list; only the first size are used */
+  int[] data;
+
+  /** The number of elements in the list */
+  int size = 0;
+
+  IntList()
+    {
+      data = new int[4];
+    }
+
+  /** Add an element to the end of the list */
 
-      for(int i=0;i<r2.size();i++)
+  void add(int value)
+    {
+      if (size == data.length)
 	{
-	  Object src = r2.sources.elementAt(i);
-	  if (r1.sources.indexOf(src) >= 0)
-	    continue;
+	  int[] d = new int[2*size];
+	  System.arraycopy(data,0,d,0,size);
+	  data = d;
+	}
+
+      data[size++] = value;
+    }
+
+  /** Remove the first occurrence of a value.  The last element is
+   *  moved into its place, so the order is not preserved. */
+
+  void removeValue(int value)
+    {
+      for(int i=0;i<size;i++)
+	if (data[i] == value)
+	  {
+	    data[i] = data[--size];
+	    return;
+	  }
+    }
+
+  /** Replace the first occurrence of a value with another value */
+
+  void replaceValue(int oldValue,int newValue)
+    {
+      for(int i=0;i<size;i++)
+	if (data[i] == oldValue)
+	  {
+	    data[i] = newValue;
+	    return;
+	  }
+    }
+
+  public Object clone()
+    {
+      IntList l = new IntList();
+
+      l.data = new int[Math.max(size,4)];
+      System.arraycopy(data,0,l.data,0,size);
+      l.size = size;
+
+      return l;
+    }
+}
+
+/** An array that can be copied in constant time.  The entries are
+ *  kept in chunks, which are shared between copies.  Each copy has a
+ *  generation, and only changes in place the chunks made by its own
+ *  generation; any other chunk is copied first.  The array grows as
+ *  needed, and entries never set are null.
+ */
+
+class PersistentArray
+{
+  /** The chunks of entries, null where nothing has been set */
+  Object[][] chunks = new Object[4][];
+
+  /** The generation that made each chunk */
+  int[] owners = new int[4];
+
+  /** Are chunks and owners shared with another copy? */
+  boolean shared = false;
+
+  /** The generation of this copy */
+  int generation = PersistentIntArray.newGeneration();
+
+  Object get(int i)
+    {
+      int c = i >> PersistentIntArray.CHUNK_BITS;
+
+      if (c >= chunks.length || chunks[c] == null)
+	return null;
+
+      return chunks[c][i & PersistentIntArray.CHUNK_MASK];
+    }
 
-	  int wb = ((Integer)r2.weights.elementAt(i)).intValue();
+  void set(int i,Object value)
+    {
+      int c = i >> PersistentIntArray.CHUNK_BITS;
+
+      if (shared || c >= chunks.length)
+	{
+	  Object[][] ch = new Object[Math.max(chunks.length,2*c+1)][];
+	  int[] ow = new int[ch.length];
+	  System.arraycopy(chunks,0,ch,0,chunks.length);
+	  System.arraycopy(owners,0,ow,0,owners.length);
+	  chunks = ch;
+	  owners = ow;
+	  shared = false;
+	}
 
-	  if (wb*w2 != 0)
-	    newRow.add(src,wb*w2);
+      if (owners[c] != generation)
+	{
+	  Object[] chunk = new Object[PersistentIntArray.CHUNK_MASK+1];
+	  if (chunks[c] != null)
+	    System.arraycopy(chunks[c],0,chunk,0,chunk.length);
+	  chunks[c] = chunk;
+	  owners[c] = generation;
 	}
 
-      return newRow;
+      chunks[c][i & PersistentIntArray.CHUNK_MASK] = value;
     }
 
-  /** Return the number of variables in the row */
+  /** The number of entries that can be read without growing */
 
-  int size()
+  int capacity()
     {
-      return sources.size();
+      return chunks.length << PersistentIntArray.CHUNK_BITS;
     }
 
-  public String toString()
+  /** Copy the entries into an ordinary array */
+
+  Object[] toArray()
     {
-      StringBuffer sb = new StringBuffer("R(");
-      for(int i=0;i<sources.size();i++)
+      Object[] a = new Object[capacity()];
+
+      for(int i=0;i<a.length;i++)
+	a[i] = get(i);
+
+      return a;
+    }
+
+  /** Make a copy.  From now on, neither copy changes the chunks they
+   *  share. */
+
+  PersistentArray copy()
+    {
+      PersistentArray a = new PersistentArray();
+
+      a.chunks = chunks;
+      a.owners = owners;
+      a.shared = shared = true;
+      generation = PersistentIntArray.newGeneration();
+
+      return a;
+    }
+}
+
+/** An array of ints that can be copied in constant time; see
+ *  PersistentArray.  Entries never set are 0.
+ */
+
+class PersistentIntArray
+{
+  /** The size of a chunk, as a number of bits of the index */
+  static final int CHUNK_BITS = 6;
+
+  /** The bits of an index within its chunk */
+  static final int CHUNK_MASK = (1 << CHUNK_BITS)-1;
+
+  /** The last generation handed out */
+  static int generations = 0;
+
+  int[][] chunks = new int[4][];
+  int[] owners = new int[4];
+  boolean shared = false;
+  int generation = newGeneration();
+
+  static int newGeneration()
+    {
+      return ++generations;
+    }
+
+  int get(int i)
+    {
+      int c = i >> CHUNK_BITS;
+
+      if (c >= chunks.length || chunks[c] == null)
+	return 0;
+
+      return chunks[c][i & CHUNK_MASK];
+    }
+
+  void set(int i,int value)
+    {
+      int c = i >> CHUNK_BITS;
+
+      if (shared || c >= chunks.length)
 	{
-	  sb.append(((Integer)weights.elementAt(i)).intValue());
-	  sb.append(sources.elementAt(i).toString());
-	  if (i<sources.size()-1)
-	    sb.append(",");
+	  int[][] ch = new int[Math.max(chunks.length,2*c+1)][];
+	  int[] ow = new int[ch.length];
+	  System.arraycopy(chunks,0,ch,0,chunks.length);
+	  System.arraycopy(owners,0,ow,0,owners.length);
+	  chunks = ch;
+	  owners = ow;
+	  shared = false;
 	}
-      sb.append(")");
 
-      return new String(sb);
+      if (owners[c] != generation)
+	{
+	  int[] chunk = new int[CHUNK_MASK+1];
+	  if (chunks[c] != null)
+	    System.arraycopy(chunks[c],0,chunk,0,chunk.length);
+	  chunks[c] = chunk;
+	  owners[c] = generation;
+	}
+
+      chunks[c][i & CHUNK_MASK] = value;
     }
 
-  protected Object clone()
+  PersistentIntArray copy()
     {
-      Row nr = new Row();
+      PersistentIntArray a = new PersistentIntArray();
 
-      nr.weights = (Vector)weights.clone();
-      nr.sources = (Vector)sources.clone();
+      a.chunks = chunks;
+      a.owners = owners;
+      a.shared = shared = true;
+      generation = newGeneration();
 
-      return nr;
+      return a;
+    }
+}
+
+/** Hands out the ids of the variables used in constraints.  Every
+ *  MeasureDependency and Unique is given an id when it is created,
+ *  and keeps it for its lifetime.  The ids are dense, so the nullspace
+ *  can use them directly as array indices.
+ */
+
+final class VariableIds
+{
+  /** The number of ids handed out so far */
+  static int count = 0;
+
+  /** Get a new id */
+
+  static int next()
+    {
+      return count++;
     }
 }
 
@@ -991,6 +2670,9 @@ class Row
  */
 abstract class Unique
 {
+  /** The id of this variable in the nullspace */
+  int id = VariableIds.next();
+
   /** Is this representation equivalent to the given non-generic object? */
   abstract boolean isEquivalent(Object s);
 }
@@ -1031,43 +2713,35 @@ class UniqueAngle extends Unique
   /** Generate the generic representation from a given AngleMeasure */
 
   UniqueAngle(AngleMeasure ad)
+    {
+      this(ad,
+	   first(rays((PointShape)ad.parents[1],(PointShape)ad.parents[0])),
+	   first(rays((PointShape)ad.parents[1],(PointShape)ad.parents[2])));
+    }
+
+  /** Generate the generic representation from a given AngleMeasure,
+   *  whose rays have already been found
+   *
+   *  @param r1  The first ray, or null if no partial order has it
+   *  @param r2  The second ray, or null if no partial order has it
+   */
+
+  UniqueAngle(AngleMeasure ad,RayKey r1,RayKey r2)
     {
       PointShape apexPoint = (PointShape)ad.parents[1];
       PointShape p1 = (PointShape)ad.parents[0];
       PointShape p2 = (PointShape)ad.parents[2];
 
-      // check if appropriate partial orders exist for each ray
-
-      for(int i=0;i<apexPoint.POs.size();i++)
+      if (r1 != null)
 	{
-	  PartialOrder PO = (PartialOrder)apexPoint.POs.elementAt(i);
-
-	  if (apex1 == null && (p1 == apexPoint || PO.isOnLeft(p1)))
-	    {
-	      apex1 = PO;
-	      apexOnLeft1 = false;
-	    }
-
-	  if (apex1 == null && PO.isOnRight(p1))
-	    {
-	      apex1 = PO;
-	      apexOnLeft1 = true;
-	    }
-	  
-	  if (apex2 == null && (p2 == apexPoint || PO.isOnLeft(p2)))
-	    {
-	      apex2 = PO;
-	      apexOnLeft2 = false;
-	    }
-
-	  if (apex2 == null && PO.isOnRight(p2))
-	    {
-	      apex2 = PO;
-	      apexOnLeft2 = true;
-	    }
+	  apex1 = r1.node;
+	  apexOnLeft1 = r1.right;
+	}
 
-	  if (apex1 != null && apex2 != null)
-	    break;
+      if (r2 != null)
+	{
+	  apex2 = r2.node;
+	  apexOnLeft2 = r2.right;
 	}
 
       // create new partial orders, if necessary
@@ -1095,6 +2769,10 @@ class UniqueAngle extends Unique
 	  apex2.isNew = false;
 	  temp.isNew = false;
 	}
+
+      // keep the nodes from being collected
+      apex1.retain();
+      apex2.retain();
     }
 
   /** test if the given non-generic object is equivalent to this one
@@ -1133,8 +2811,107 @@ class UniqueAngle extends Unique
       return (p12 && p21);
     }
 
+  /** The rays from a point through another point, one for each partial
+   *  order node of the first point from which the second can be
+   *  reached, in the order of the nodes, looking left before right.
+   *  A point is on both sides of itself. */
+
+  static Vector rays(PointShape apex,PointShape p)
+    {
+      Vector r = new Vector();
+
+      for(int i=0;i<apex.POs.size();i++)
+	{
+	  PartialOrder PO = (PartialOrder)apex.POs.elementAt(i);
+
+	  if (p == apex || PO.isOnLeft(p))
+	    r.addElement(new RayKey(PO,false));
+
+	  if (PO.isOnRight(p))
+	    r.addElement(new RayKey(PO,true));
+	}
+
+      return r;
+    }
+
+  /** The first of a list of rays, or null if there are none */
+
+  static RayKey first(Vector rays)
+    {
+      return (rays.size() > 0 ? (RayKey)rays.firstElement() : null);
+    }
+
+  /** The key of this angle in the index of its apex */
+
+  RayPair key()
+    {
+      return new RayPair(new RayKey(apex1,apexOnLeft1),
+			 new RayKey(apex2,apexOnLeft2));
+    }
+
   public String toString()
     {
       return "Angle("+apex1.p+")";
     }
 }
+
+/** The key of a ray from a point: the point's node in a partial
+ *  order, and the direction to look along it.  The node stands for the
+ *  whole partial order through the point, so two points are on the
+ *  same ray exactly when both can be reached from the node in that
+ *  direction. */
+
+class RayKey
+{
+  PartialOrder node;
+
+  /** Does the ray go to the right of the node? */
+  boolean right;
+
+  RayKey(PartialOrder n,boolean r)
+    {
+      node = n;
+      right = r;
+    }
+
+  public int hashCode()
+    {
+      return 2*node.hashCode()+(right ? 1 : 0);
+    }
+
+  public boolean equals(Object o)
+    {
+      return (o instanceof RayKey &&
+	      ((RayKey)o).node == node && ((RayKey)o).right == right);
+    }
+}
+
+/** An unordered pair of rays from the same point, used to look up the
+ *  UniqueAngle between them */
+
+class RayPair
+{
+  RayKey r1, r2;
+
+  RayPair(RayKey a,RayKey b)
+    {
+      r1 = a;
+      r2 = b;
+    }
+
+  public int hashCode()
+    {
+      return r1.hashCode()+r2.hashCode();
+    }
+
+  public boolean equals(Object o)
+    {
+      if (!(o instanceof RayPair))
+	return false;
+
+      RayPair p = (RayPair)o;
+
+      return ((r1.equals(p.r1) && r2.equals(p.r2)) ||
+	      (r1.equals(p.r2) && r2.equals(p.r1)));
+    }
+}
@@ -38,6 +38,75 @@ public class Construction implements Constants
   /** The list of output constraints, stored as ConstraintRules */
   Vector outputConstraints = new Vector();
 
+  /** The plan for recomputing this construction during a drag, or null
+   *  if it can't be planned.  It is made by makePlan() when the
+   *  construction is put in the table of constructions. */
+  ConstructionPlan plan = null;
+
+  /** The nested constructions inlined into the plan */
+  Vector inlined = new Vector();
+
+  /** Make the plan for recomputing this construction during a drag */
+
+  void makePlan()
+  {
+    plan = ConstructionPlan.compile(this);
+  }
+
+  /** Does this construction use d, directly or through the
+   *  constructions it uses? */
+
+  boolean uses(Construction d)
+  {
+    for(int i=numberOfInputs;i<rules.size();i++)
+      {
+	Construction sub = ((Rule)rules.elementAt(i)).construction;
+
+	if (sub != null && (sub == d || sub.uses(d)))
+	  return true;
+      }
+
+    return false;
+  }
+
+  /** Make the constructions in a table use a redefinition of one of
+   *  them.  Their rules that used the old definition use the new one,
+   *  and the plans that inlined the old definition are made again.
+   *  The new definition must not use the old one (see uses()), or it
+   *  would end up using itself.
+   *
+   *  @param constructions  The table of constructions
+   *  @param old  The old definition
+   *  @param c    The new definition
+   */
+
+  static void replace(Hashtable constructions,Construction old,
+		      Construction c)
+  {
+    Vector stale = new Vector();   // the constructions to plan again
+
+    for(Enumeration e = constructions.elements();e.hasMoreElements();)
+      {
+	Construction user = (Construction)e.nextElement();
+
+	for(int i=user.numberOfInputs;i<user.rules.size();i++)
+	  {
+	    Rule rule = (Rule)user.rules.elementAt(i);
+
+	    if (rule.construction == old)
+	      rule.construction = c;
+	  }
+
+	if (user.inlined.contains(old))
+	  stale.addElement(user);
+      }
+
+    // plan them only once every rule uses c, since one of them may
+    // inline another
+    for(int i=0;i<stale.size();i++)
+      ((Construction)stale.elementAt(i)).makePlan();
+  }
+
 
   /**
    * Apply the construction to the given list of inputs
@@ -49,10 +118,9 @@ public class Construction implements Constants
    * 3. during a drag, want nothing
    * 4. during a "view", want everything
    *
-   * this will generate some dead POs -
-   * 1. if an exception occurs
-   * 2. a partial order is created for a line and all but one or two points
-   *    are discarded
+   * the partial order nodes of the intermediate points and lines are
+   * let go of when the construction finishes or fails, so that their
+   * line orders can collect them
    *
    *  @param inputs   The list of inputs shapes, in order
    *  @param makePOs  Should apply() generate partial orders?
@@ -142,44 +210,45 @@ public class Construction implements Constants
 	}
 
       // Generate the output constraints
+      Vector constraints = new Vector();
+
       for(i=0;i<outputConstraints.size();i++)
 	{
 	  // Convert each output ConstraintRule to a Constraint
-	  Constraint c = ((ConstraintRule)outputConstraints.
-			  elementAt(i)).create(steps);
-
-	  if (DEBUG)
-	    {
-	      System.out.println("nullspace = "+
-				 cf.nullspace.toString());
-	      System.out.println("adding "+c.toString());
-	    }
+	  constraints.addElement(((ConstraintRule)outputConstraints.
+				  elementAt(i)).create(steps));
+	}
 
-	  // Check if this constraint is redundant
-	  if (!cf.nullspace.follows(c))
-	    {
-	      c.name = c.toString();
+      if (Nullspace.debug)
+	{
+	  System.out.println("nullspace = "+
+			     cf.nullspace.toString());
+	  System.out.println("adding "+constraints);
+	}
 
-	      if (firstConstraint)
-		{
-		  // add a blank line before the first consraint
-		  firstConstraint = false;
-		  cf.addBlankStep();
-		}
+      // add the constraints that aren't redundant to the nullspace
+      boolean[] redundant = cf.addProvenConstraints(constraints);
 
-	      // add the constraint to the constraintFrame
-	      cf.addStep(c,stepNum+": ");
+      for(i=0;i<constraints.size();i++)
+	if (!redundant[i])
+	  {
+	    Constraint c = (Constraint)constraints.elementAt(i);
+	    c.name = c.toString();
 
-	      // add the constraint to the nullspace
-	      cf.addProvenConstraint(c);
-	    }
+	    if (firstConstraint)
+	      {
+		// add a blank line before the first consraint
+		firstConstraint = false;
+		cf.addBlankStep();
+	      }
 
-	  if (DEBUG)
-	    System.out.println("new nullspace = "+
-			       cf.nullspace.toString());
-	}
+	    // add the constraint to the constraintFrame
+	    cf.addStep(c,stepNum+": ");
+	  }
 
       // Generate automatic constraints (inferred from sidedness)
+      constraints = new Vector();
+
       for(i=0;i<outputs.length;i++)
 	{
 	  if (outputs[i] instanceof PointShape)
@@ -191,38 +260,40 @@ public class Construction implements Constants
 		{
 		  // generate enough constraints to represent the partial
 		  // ordering
-		  Vector constraints = 
-		    ((PartialOrder)ps.POs.elementAt(j)).
+		  Vector lc = ((PartialOrder)ps.POs.elementAt(j)).
 		    makeLineConstraints();
 
-		  // for each new constraint
-		  for(int k=0;k<constraints.size();k++)
-		    {
-		      Constraint c= (Constraint)constraints.elementAt(k);
-		      
-		      // check if the constraint is redundant
-		      if (!cf.nullspace.follows(c))
-			{
-			  c.name = c.toString();
-			  
-			  if (firstConstraint)
-			    {
-			      // add a blank step in the constaintFrame
-			      firstConstraint = false;
-			      cf.addBlankStep();
-			    }
-			  
-			  // add the constraint to the constraintFrame
-			  cf.addStep(c,stepNum+"A:");
-
-			  // add the constraint to the nullspace
-			  cf.addProvenConstraint(c);
-			}
-		    }
+		  for(int k=0;k<lc.size();k++)
+		    constraints.addElement(lc.elementAt(k));
 		}
 	    }
 	}
 
+      // check all the new constraints together, and add those that
+      // aren't redundant
+      redundant = cf.addProvenConstraints(constraints);
+
+      for(i=0;i<constraints.size();i++)
+	if (!redundant[i])
+	  {
+	    Constraint c = (Constraint)constraints.elementAt(i);
+	    c.name = c.toString();
+
+	    if (firstConstraint)
+	      {
+		// add a blank step in the constaintFrame
+		firstConstraint = false;
+		cf.addBlankStep();
+	      }
+
+	    // add the constraint to the constraintFrame
+	    cf.addStep(c,stepNum+"A:");
+	  }
+
+      if (Nullspace.debug)
+	System.out.println("new nullspace = "+
+			   cf.nullspace.toString());
+
       // return the output shapes
       return outputs;
     }
@@ -240,7 +311,8 @@ public class Construction implements Constants
     /** The parent shapes of the current step */
     Shape[] parents;
 
-    /** A list of all intermediate (not input or output) points */
+    /** A list of all intermediate (not input or output) points, and
+     *  line shapes with partial orders */
     Vector points = new Vector();
 
     // for each step
@@ -310,8 +382,11 @@ public class Construction implements Constants
 
 	    // create a partial order for this shape
 	    if (makePOs)
-	      ((LineShape)steps[i][0]).makePO((PointShape)parents[0],
-					      (PointShape)parents[1]);
+	      {
+		((LineShape)steps[i][0]).makePO((PointShape)parents[0],
+						(PointShape)parents[1]);
+		points.addElement(steps[i][0]);
+	      }
 
 	    break;
 
@@ -329,8 +404,11 @@ public class Construction implements Constants
 
 	    // create a partial order for this shape
 	    if (makePOs)
-	      ((LineShape)steps[i][0]).makePO((PointShape)parents[0],
-					      (PointShape)parents[1]);
+	      {
+		((LineShape)steps[i][0]).makePO((PointShape)parents[0],
+						(PointShape)parents[1]);
+		points.addElement(steps[i][0]);
+	      }
 
 	    break;
 
@@ -348,8 +426,11 @@ public class Construction implements Constants
 
 	    // create a partial order for this shape
 	    if (makePOs)
-	      ((LineShape)steps[i][0]).makePO((PointShape)parents[0],
-					      (PointShape)parents[1]);
+	      {
+		((LineShape)steps[i][0]).makePO((PointShape)parents[0],
+						(PointShape)parents[1]);
+		points.addElement(steps[i][0]);
+	      }
 
 	    break;
 
@@ -385,9 +466,10 @@ public class Construction implements Constants
 	    // apply the construction
 	    steps[i] = currentRule.construction.apply(parents,makePOs);
 
-	    // add all output points to the list of intermediates
+	    // add all output points and lines to the list of intermediates
 	    for(int k=0;k<steps[i].length;k++)
-	      if (steps[i][k] instanceof PointShape)
+	      if (steps[i][k] instanceof PointShape ||
+		  steps[i][k] instanceof LineShape)
 		points.addElement(steps[i][k]);
 	    
 	    break;
@@ -453,13 +535,25 @@ public class Construction implements Constants
 
     // delete partial orders for intermediate points
     if (makePOs)
-      {
-	for(int i=0;i<points.size();i++)
-	  ((PointShape)points.elementAt(i)).deletePOs();
-      }
+      discard(points);
 
     return outputs;
   }
+
+  /** Let go of the partial orders of intermediate shapes.  Points
+   *  delete their partial order nodes, and lines release theirs.
+   *
+   *  @param shapes  The intermediate points and line shapes
+   */
+
+  static void discard(Vector shapes)
+  {
+    for(int i=0;i<shapes.size();i++)
+      if (shapes.elementAt(i) instanceof PointShape)
+	((PointShape)shapes.elementAt(i)).deletePOs();
+      else
+	((LineShape)shapes.elementAt(i)).releasePO();
+  }
   
   /** Test that the input constraints are met.
    *
@@ -471,25 +565,31 @@ public class Construction implements Constants
   void testAssumptions(Shape[][] steps,Nullspace nullspace)
     throws ConstructionError
       {
-	// check that the input constraints are met
+	Vector constraints = new Vector();
+
 	for(int i=0;i<inputConstraints.size();i++)
 	  {
 	    ConstraintRule c1 = (ConstraintRule)inputConstraints.elementAt(i);
 	    Constraint c = c1.create(steps);
 
-	    if (DEBUG)
+	    if (Nullspace.debug)
 	      {
 		System.out.println("Checking "+c.toString());
 		System.out.println("nullspace = "+nullspace.toString());
 	      }
 
-	    if (c.isTautology())
-	      continue;
-
-	    if (!nullspace.follows(c))
-	      throw new ConstructionError("Input constraint \""+c.toString()+
-					  "\" not met");
+	    if (!c.isTautology())
+	      constraints.addElement(c);
 	  }
+
+	// check that the input constraints are met
+	boolean[] met = nullspace.followsAll(constraints);
+
+	for(int i=0;i<met.length;i++)
+	  if (!met[i])
+	    throw new ConstructionError("Input constraint \""+
+					constraints.elementAt(i).toString()+
+					"\" not met");
       }
 
   /** Get the annotation for an input rule */
@@ -660,13 +760,12 @@ class ConstructionError extends Throwable
     }
 
   /** Create the construction error and delete partial orders
-   *  for all intermediate points */
+   *  for all intermediate points and lines */
   ConstructionError(Vector intPoints,String message)
     {
       super(message);
 
-      for(int i=0;i<intPoints.size();i++)
-	((PointShape)intPoints.elementAt(i)).deletePOs();
+      Construction.discard(intPoints);
     }
 }
 
@@ -879,3 +978,472 @@ class ConstraintRule implements Constants
 }
   
 
+
+/** A construction compiled for recomputing during a drag.  Each step
+ *  becomes a primitive instruction in a flat array of ints, whose
+ *  operands are resolved to slots in a register file of doubles,
+ *  laid out as Geometry.store() lays out shapes.  The kind of every
+ *  slot is known when the plan is made, so nothing is checked or
+ *  allocated while it runs.  The steps call the same Geometry functions
+ *  as the shapes and Geometry.Intersection(), so the results are
+ *  identical to those of Construction.apply().
+ */
+
+class ConstructionPlan implements Constants
+{
+  // the instructions.  Each is the opcode, followed by its operands
+  static final int MAKE_LINE = 0;        // dst, p, q
+  static final int MAKE_PERP_BI = 1;     // dst, p, q
+  static final int MAKE_CIRCLE = 2;      // dst, center, p
+  static final int MEET_POINT = 3;       // dst, count, p, s, kind
+  static final int MEET_LINES = 4;       // dst, count, l1, kind1, l2, kind2
+  static final int MEET_LINE_CIRCLE = 5; // dst, count, l, kind, c
+  static final int MEET_CIRCLES = 6;     // dst, count, c1, c2
+
+  /** The instructions */
+  int[] code;
+
+  /** The register file */
+  double[] r;
+
+  /** The number of input points.  They are in the first registers */
+  int numberOfInputs;
+
+  /** The slot and kind of each output shape */
+  int[] outputSlot, outputKind;
+
+  /** The nested constructions whose steps are part of this plan */
+  Vector inlined;
+
+  // used while the plan is being made
+
+  /** The instructions made so far */
+  IntList made;
+
+  /** The number of registers used so far */
+  int used = 0;
+
+  /** Number of plans made, and number of constructions that could not
+   *  be planned */
+  static int compiled = 0, refused = 0;
+
+  /** The number of registers a shape of the given kind takes */
+
+  static int size(int kind)
+  {
+    switch (kind)
+      {
+      case POINT:
+	return 2;
+
+      case CIRCLE:
+	return 3;
+
+      default:
+	return 7;
+      }
+  }
+
+  /** Make the plan for a construction.
+   *
+   *  @return The plan, or null if some step can't be planned.  Those
+   *  steps always fail, or fail for reasons the plan doesn't check, so
+   *  the construction should be applied as before.
+   */
+
+  static ConstructionPlan compile(Construction c)
+  {
+    ConstructionPlan plan = new ConstructionPlan();
+    int[] inputSlot = new int[c.numberOfInputs];
+    int[] inputKind = new int[c.numberOfInputs];
+
+    plan.numberOfInputs = c.numberOfInputs;
+    plan.made = new IntList();
+    plan.inlined = c.inlined = new Vector();
+
+    for(int i=0;i<c.numberOfInputs;i++)
+      {
+	inputSlot[i] = plan.used;
+	inputKind[i] = POINT;
+	plan.used += 2;
+      }
+
+    if (!plan.inline(c,inputSlot,inputKind))
+      {
+	refused ++;
+	return null;
+      }
+
+    plan.code = new int[plan.made.size];
+    System.arraycopy(plan.made.data,0,plan.code,0,plan.made.size);
+    plan.made = null;
+
+    plan.r = new double[plan.used];
+
+    compiled ++;
+
+    return plan;
+  }
+
+  /** Add the steps of a construction to the plan, reading its inputs
+   *  from the given slots.  The steps of nested constructions are added
+   *  the same way, with their inputs and outputs mapped onto the slots
+   *  of the enclosing steps, so the plan has only primitive
+   *  instructions.  Afterwards outputSlot and outputKind hold the
+   *  outputs of the construction.
+   *
+   *  @return  False if some step can't be planned
+   */
+
+  boolean inline(Construction c,int[] inputSlot,int[] inputKind)
+  {
+    int[][] slot = new int[c.rules.size()][];
+    int[][] kind = new int[c.rules.size()][];
+
+    outputSlot = outputKind = null;
+
+    for(int i=0;i<c.numberOfInputs;i++)
+      {
+	slot[i] = new int[1];
+	kind[i] = new int[1];
+	slot[i][0] = inputSlot[i];
+	kind[i][0] = inputKind[i];
+      }
+
+    for(int i=c.numberOfInputs;i<c.rules.size();i++)
+      {
+	Rule rule = (Rule)c.rules.elementAt(i);
+
+	if (rule.type == FORCE)
+	  continue;
+
+	// resolve the parents
+	int[] ps = new int[rule.parents.length];
+	int[] pk = new int[rule.parents.length];
+
+	for(int j=0;j<ps.length;j++)
+	  {
+	    int step = rule.parents[j].stepNumber;
+
+	    if (slot[step] == null || slot[step].length <= rule.childNumber[j])
+	      return refuse(c,rule);
+
+	    ps[j] = slot[step][rule.childNumber[j]];
+	    pk[j] = kind[step][rule.childNumber[j]];
+	  }
+
+	int count = rule.childName.length;
+
+	slot[i] = new int[count];
+	kind[i] = new int[count];
+
+	switch (rule.type)
+	  {
+	  case LINE:
+	  case RAY:
+	  case COMPL_RAY:
+	  case LINE_SEGMENT:
+	  case PERP_BI:
+	  case CIRCLE:
+	    if (count != 1 || pk[0] != POINT || pk[1] != POINT)
+	      return refuse(c,rule);
+
+	    if (rule.type == CIRCLE)
+	      made.add(MAKE_CIRCLE);
+	    else if (rule.type == PERP_BI)
+	      made.add(MAKE_PERP_BI);
+	    else
+	      made.add(MAKE_LINE);
+
+	    made.add(used);
+	    made.add(ps[0]);
+	    made.add(ps[1]);
+
+	    slot[i][0] = used;
+	    kind[i][0] = rule.type;
+	    used += size(rule.type);
+	    break;
+
+	  case INTERSECTION:
+	    int a = 0, b = 1, room = 4;
+
+	    if (count > 2)
+	      return refuse(c,rule);
+
+	    // rearrange the inputs as Geometry.Intersection() does
+	    if ((Geometry.isLine(pk[1]) && pk[0] == CIRCLE) || pk[1] == POINT)
+	      {
+		a = 1;
+		b = 0;
+	      }
+
+	    if (pk[a] == POINT)
+	      {
+		if (count > 1)
+		  return refuse(c,rule);
+
+		made.add(MEET_POINT);
+		room = 2;
+		made.add(used);
+		made.add(count);
+		made.add(ps[a]);
+		made.add(ps[b]);
+		made.add(pk[b]);
+	      }
+	    else if (Geometry.isLine(pk[b]))
+	      {
+		if (count > 1)
+		  return refuse(c,rule);
+
+		made.add(MEET_LINES);
+		room = 2;
+		made.add(used);
+		made.add(count);
+		made.add(ps[a]);
+		made.add(pk[a]);
+		made.add(ps[b]);
+		made.add(pk[b]);
+	      }
+	    else if (Geometry.isLine(pk[a]))
+	      {
+		made.add(MEET_LINE_CIRCLE);
+		made.add(used);
+		made.add(count);
+		made.add(ps[a]);
+		made.add(pk[a]);
+		made.add(ps[b]);
+	      }
+	    else
+	      {
+		made.add(MEET_CIRCLES);
+		made.add(used);
+		made.add(count);
+		made.add(ps[a]);
+		made.add(ps[b]);
+	      }
+
+	    for(int k=0;k<count;k++)
+	      {
+		slot[i][k] = used + 2*k;
+		kind[i][k] = POINT;
+	      }
+
+	    // leave room for all the points the step can find, since
+	    // they are written before they are counted
+	    used += room;
+	    break;
+
+	  case CONSTRUCTION:
+	    Construction sub = rule.construction;
+
+	    if (ps.length != sub.numberOfInputs)
+	      return refuse(c,rule);
+
+	    if (!inlined.contains(sub))
+	      inlined.addElement(sub);
+
+	    // the outputs of the nested construction become the outputs
+	    // of this step
+	    if (!inline(sub,ps,pk))
+	      return false;
+
+	    if (count != outputSlot.length)
+	      return refuse(c,rule);
+
+	    slot[i] = outputSlot;
+	    kind[i] = outputKind;
+	    outputSlot = outputKind = null;
+	    break;
+
+	  case OUTPUT:
+	    outputSlot = ps;
+	    outputKind = pk;
+	    break;
+
+	  default:
+	    return refuse(c,rule);
+	  }
+      }
+
+    if (outputSlot == null)
+      return refuse(c,null);
+
+    return true;
+  }
+
+  /** Note a step that can't be planned */
+
+  static boolean refuse(Construction c,Rule rule)
+  {
+    if (Nullspace.debug)
+      System.out.println("Can't plan \""+c.name+"\" at "+rule);
+
+    return false;
+  }
+
+  /** Can this plan be run on these inputs and outputs? */
+
+  boolean accepts(Shape[] inputs,Shape[] outputs)
+  {
+    if (inputs.length != numberOfInputs || outputs.length != outputSlot.length)
+      return false;
+
+    for(int i=0;i<inputs.length;i++)
+      if (inputs[i].kind() != POINT)
+	return false;
+
+    // the outputs may have been made by an older definition
+    for(int i=0;i<outputs.length;i++)
+      if (outputs[i].kind() != outputKind[i])
+	return false;
+
+    return true;
+  }
+
+  /** Run the plan on the given input points, and copy the results into
+   *  the output shapes.  The outputs are left alone when it fails.
+   *
+   *  @return  Did the construction succeed?
+   */
+
+  boolean evaluate(Shape[] inputs,Shape[] outputs)
+  {
+    for(int i=0;i<numberOfInputs;i++)
+      {
+	r[2*i] = ((PointShape)inputs[i]).x;
+	r[2*i+1] = ((PointShape)inputs[i]).y;
+      }
+
+    if (!run())
+      return false;
+
+    for(int i=0;i<outputs.length;i++)
+      {
+	int s = outputSlot[i];
+
+	switch (outputKind[i])
+	  {
+	  case POINT:
+	    PointShape p = (PointShape)outputs[i];
+	    p.x = r[s];
+	    p.y = r[s+1];
+	    break;
+
+	  case CIRCLE:
+	    Circle c = (Circle)outputs[i];
+	    c.x = r[s];
+	    c.y = r[s+1];
+	    c.radius = r[s+2];
+	    break;
+
+	  default:
+	    LineShape ls = (LineShape)outputs[i];
+	    ls.x1 = r[s];
+	    ls.y1 = r[s+1];
+	    ls.x2 = r[s+2];
+	    ls.y2 = r[s+3];
+	    ls.A = r[s+4];
+	    ls.B = r[s+5];
+	    ls.C = r[s+6];
+	  }
+      }
+
+    return true;
+  }
+
+  /** Run the instructions over the register file, once the inputs are
+   *  loaded
+   *
+   *  @return  Did the construction succeed?
+   */
+
+  boolean run()
+  {
+    int pc = 0;
+
+    while (pc < code.length)
+      {
+	int dst = code[pc+1];
+
+	switch (code[pc])
+	  {
+	  case MAKE_LINE:
+	    {
+	      int p = code[pc+2], q = code[pc+3];
+
+	      r[dst] = r[p];
+	      r[dst+1] = r[p+1];
+	      r[dst+2] = r[q];
+	      r[dst+3] = r[q+1];
+	      setABC(dst);
+	      pc += 4;
+	      break;
+	    }
+
+	  case MAKE_PERP_BI:
+	    {
+	      int p = code[pc+2], q = code[pc+3];
+
+	      r[dst] = Geometry.midpoint(r[p],r[q]);
+	      r[dst+1] = Geometry.midpoint(r[p+1],r[q+1]);
+	      r[dst+2] = Geometry.bisectorX(r[dst],r[p+1],r[q+1]);
+	      r[dst+3] = Geometry.bisectorY(r[dst+1],r[p],r[q]);
+	      setABC(dst);
+	      pc += 4;
+	      break;
+	    }
+
+	  case MAKE_CIRCLE:
+	    {
+	      int p = code[pc+2], q = code[pc+3];
+
+	      r[dst] = r[p];
+	      r[dst+1] = r[p+1];
+	      r[dst+2] = Geometry.distance(r[p],r[p+1],r[q],r[q+1]);
+	      pc += 4;
+	      break;
+	    }
+
+	  case MEET_POINT:
+	    if (Geometry.meetPoint(r,code[pc+3],code[pc+4],code[pc+5],true,
+				   r,dst) != code[pc+2])
+	      return false;
+	    pc += 6;
+	    break;
+
+	  case MEET_LINES:
+	    if (Geometry.meetLines(r,code[pc+3],code[pc+4],code[pc+5],
+				   code[pc+6],r,dst) != code[pc+2])
+	      return false;
+	    pc += 7;
+	    break;
+
+	  case MEET_LINE_CIRCLE:
+	    if (Geometry.meetLineCircle(r,code[pc+3],code[pc+4],true,
+					code[pc+5],r,dst) != code[pc+2])
+	      return false;
+	    pc += 6;
+	    break;
+
+	  case MEET_CIRCLES:
+	    if (Geometry.meetCircles(r,code[pc+3],code[pc+4],
+				     r,dst) != code[pc+2])
+	      return false;
+	    pc += 5;
+	    break;
+
+	  }
+      }
+
+    return true;
+  }
+
+  /** Compute A, B and C of the line shape at l from its points */
+
+  void setABC(int l)
+  {
+    r[l+4] = Geometry.lineA(r[l],r[l+1],r[l+2],r[l+3]);
+    r[l+5] = Geometry.lineB(r[l],r[l+1],r[l+2],r[l+3]);
+    r[l+6] = Geometry.lineC(r[l],r[l+1],r[l+2],r[l+3]);
+  }
+}
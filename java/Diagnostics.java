@@ -0,0 +1,185 @@
+/* GRACE - Graphical Ruler and Compass Editor
+ *
+ * Diagnostics.java
+ *
+ * Measurements of the nullspace, and the window that displays them
+ *
+ */
+
+import java.awt.*;
+import java.math.BigInteger;
+
+/** A snapshot of the size of a nullspace and of the work it has done.
+ *  The sizes are gathered from the engines when the snapshot is
+ *  taken; see Nullspace.metrics().
+ */
+
+class NullspaceMetrics
+{
+  /** The number of variables */
+  int variables = 0;
+
+  /** The number of independent blocks of variables */
+  int blocks = 0;
+
+  /** The number of rows stored by the engines */
+  int rows = 0;
+
+  /** The number of nonzero coefficients in those rows */
+  long nonzeros = 0;
+
+  /** The largest coefficient magnitude that fits in a long */
+  long largest = 0;
+
+  /** The largest coefficient magnitude that doesn't, or null */
+  BigInteger bigLargest = null;
+
+  /** The number of calls to add() and the time spent in them, in
+   *  nanoseconds */
+  long adds = 0, addTime = 0;
+
+  /** The number of calls to follows() and the time spent in them, in
+   *  nanoseconds */
+  long follows = 0, followsTime = 0;
+
+  /** Take the coefficients of a row into account */
+
+  void coefficients(Row r)
+    {
+      if (r.weights != null)
+	{
+	  for(int i=0;i<r.weights.length;i++)
+	    largest = Math.max(largest,Math.abs(r.weights[i]));
+	}
+      else
+	for(int i=0;i<r.bigWeights.length;i++)
+	  if (bigLargest == null ||
+	      r.bigWeights[i].abs().compareTo(bigLargest) > 0)
+	    bigLargest = r.bigWeights[i].abs();
+    }
+
+  /** The largest coefficient magnitude */
+
+  BigInteger largestCoefficient()
+    {
+      return (bigLargest != null ? bigLargest : BigInteger.valueOf(largest));
+    }
+
+  /** The average number of nonzeros in a row */
+
+  double averageRowLength()
+    {
+      return (rows > 0 ? (double)nonzeros/rows : 0);
+    }
+
+  public String toString()
+    {
+      BigInteger l = largestCoefficient();
+
+      return
+	"Variables: "+variables+" in "+blocks+" blocks\n"+
+	"Rows: "+rows+"\n"+
+	"Nonzeros: "+nonzeros+"\n"+
+	"Average row length: "+((int)(averageRowLength()*10))/10.0+"\n"+
+	"Largest coefficient: "+(l.bitLength() > 64 ?
+				 l.bitLength()+" bits" : l.toString())+"\n"+
+	"add: "+adds+" calls, "+addTime/1000000+" ms\n"+
+	"follows: "+follows+" calls, "+followsTime/1000000+" ms\n"+
+	Nullspace.cacheStatistics()+"\n"+
+	"Row arithmetic - "+Row.statistics()+"\n"+
+	"Modular engine - "+ModularEngine.statistics()+"\n"+
+	NullspaceEngine.pivotStatistics();
+    }
+}
+
+/** A window showing the metrics of the nullspace of a ConstraintFrame.
+ *  It is updated whenever the nullspace changes while it is shown,
+ *  and can switch the nullspace's debugging output on and off.
+ */
+
+class DiagnosticsFrame extends Frame
+{
+  /** For serialization, which Frame supports */
+  private static final long serialVersionUID = 1L;
+
+  /** The constraint window whose nullspace is shown */
+  ConstraintFrame constraintFrame;
+
+  /** The display of the metrics */
+  TextArea text;
+
+  /** Switches Nullspace.debug */
+  Checkbox debug;
+
+  /** Create the window (but don't display it yet) */
+
+  DiagnosticsFrame(ConstraintFrame cf)
+    {
+      super("Nullspace diagnostics");
+
+      constraintFrame = cf;
+
+      setLayout(new BorderLayout());
+
+      text = new TextArea(14,50);
+      text.setEditable(false);
+      add("Center",text);
+
+      Panel controls = new Panel();
+      debug = new Checkbox("Print debugging output");
+      debug.setState(Nullspace.debug);
+      controls.add(debug);
+      controls.add(new Button("Refresh"));
+      controls.add(new Button("Close"));
+      add("South",controls);
+
+      pack();
+    }
+
+  /** Show the window next to the constraint window */
+
+  public void show()
+    {
+      Point p = constraintFrame.location();
+      move(p.x+constraintFrame.size().width,p.y);
+
+      update();
+      super.show();
+    }
+
+  /** Display the current metrics */
+
+  void update()
+    {
+      text.setText(constraintFrame.nullspace.metrics().toString());
+    }
+
+  /** Handle a button press or the checkbox */
+
+  public boolean action(Event e,Object what)
+    {
+      if (e.target == debug)
+	{
+	  Nullspace.debug = debug.getState();
+	  return true;
+	}
+
+      if (e.target instanceof Button)
+	{
+	  String choice = (String)e.arg;
+
+	  if (choice.equals("Close"))
+	    {
+	      hide();
+	      return true;
+	    }
+	  else if (choice.equals("Refresh"))
+	    {
+	      update();
+	      return true;
+	    }
+	}
+
+      return false;
+    }
+}
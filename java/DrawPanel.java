@@ -1333,26 +1333,56 @@ public class DrawPanel extends Canvas implements Constants
 
   Vector measures = new Vector();
 
-  /** Recursive helper function for mark()
+  /** The number of the current drag.  Dependencies marked with it are
+   *  affected by the drag; bumping it unmarks them all. */
+  int markCount = 0;
+
+  /** The shapes whose offspring are being marked, for markHelper() */
+  Vector markShapes = new Vector();
+
+  /** How far through the offspring of each shape markHelper() is */
+  IntList markNext = new IntList();
+
+  /** Helper function for mark().  Marks the dependencies below a shape
+   *  depth first, keeping its own stack so that deep constructions
+   *  can't overflow the Java one.
    *  
    * @param s   A shape to mark, and add to measures
    */ 
 
   void markHelper(Shape s)
     {
-      for(Enumeration e = s.offspring.elements();e.hasMoreElements();)
+      markShapes.addElement(s);
+      markNext.add(0);
+
+      while (markNext.size > 0)
 	{
-	  Dependency d = (Dependency)e.nextElement();
+	  int top = markNext.size-1;
+	  Shape t = (Shape)markShapes.elementAt(top);
 
-	  if (!d.mark)
+	  if (markNext.data[top] == t.offspring.size())
 	    {
-	      d.mark = true;
+	      markShapes.removeElementAt(top);
+	      markNext.size --;
+	      continue;
+	    }
+
+	  Dependency d = (Dependency)t.offspring.elementAt(markNext.data[top]++);
+
+	  if (d.mark != markCount)
+	    {
+	      d.mark = markCount;
 
 	      if (d instanceof MeasureDependency)
 		measures.addElement(d);
 
-	      for(int i=0;i<d.children.length;i++)
-		markHelper(d.children[i]);
+	      // the children go on the stack last first, so the first
+	      // is finished first
+	      for(int i=d.children.length-1;i>=0;i--)
+		{
+		  markShapes.addElement(d.children[i]);
+		  markNext.add(0);
+		}
 	    }
 	}
     }
@@ -1374,6 +1404,7 @@ public class DrawPanel extends Canvas implements Constants
     dragDeps.removeAllElements();
 
     // mark the affected dependencies
+    markCount ++;
     markHelper(s);
 
     nonDragAreSuccessful = true;
@@ -1391,11 +1422,8 @@ public class DrawPanel extends Canvas implements Constants
 	    // if the dependency is marked, add it to dragDeps
 	    // otherwise, check if it's successful
 
-	    if (d.mark)
-	      {
-		dragDeps.addElement(d);
-		d.mark = false;
-	      }
+	    if (d.mark == markCount)
+	      dragDeps.addElement(d);
 	    else
 	      if (!d.successful)
 		nonDragAreSuccessful = false;
@@ -1405,12 +1433,7 @@ public class DrawPanel extends Canvas implements Constants
     // add all the affectd measure dependencies to the end of the list
 
     for(int i=0;i<measures.size();i++)
-      {
-	Dependency d = (Dependency)measures.elementAt(i);
-
-	dragDeps.addElement(d);
-	d.mark = false;
-      }
+      dragDeps.addElement(measures.elementAt(i));
   }
 
   /** Turn labels on or off
@@ -231,6 +231,9 @@ public class Editor extends Frame implements Constants
 	Circle newCircle;                      // a new Circle
 	Shape[] result;
 
+	// the shapes of the earlier steps are all in the draw panel now
+	cf.compactIfNeeded();
+
 	// get each of the parents
 	for(int j=0;j<parents.length;j++)
 	  {
@@ -758,7 +761,8 @@ public boolean handleEvent(Event e)
 	  ((Dependency)step).editorCopy = null;
       }
 
-    cp.add(c,c.name);
+    if (!cp.add(c,c.name))
+      return;
 
     message("Defined "+c.name);
   }
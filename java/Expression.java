@@ -20,11 +20,8 @@ abstract class Expression implements Cloneable, Constants
   /** The expression display where this is being viewed, if any */
   ExpressionDisplay display = null;
 
-  /** The list of variables */
-  Vector sources;
-
-  /** The coefficients of each variable (could be combined into a hashtable) */
-  Vector weights;
+  /** The variables and their coefficients */
+  Terms terms = Terms.EMPTY;
 
   /** Sum of the weights */
   int numTerms;
@@ -37,8 +34,6 @@ abstract class Expression implements Cloneable, Constants
 
   Expression()
   {
-    sources = new Vector();
-    weights = new Vector();
     numTerms = 0;
   }
 
@@ -51,8 +46,7 @@ public Object clone()
     else
       e = new DistanceExpression();
 
-    e.sources = (Vector)sources.clone();
-    e.weights = (Vector)weights.clone();
+    e.terms = terms;
     e.numTerms = numTerms;
     e.input = input;
 
@@ -69,21 +63,9 @@ public Object clone()
   {
     numTerms ++;
 
-    int index = sources.indexOf(md);
-      
-    // is this variable already in the expression?
-    if (index < 0)
-      {
-	// no; add it
-	sources.addElement(md);
-	weights.addElement(new Integer(1));
-      }
-    else
-      {
-	// yes; increment the weight
-	Integer i = (Integer)weights.elementAt(index);
-	weights.setElementAt(new Integer(i.intValue()+1),index);
-      }
+    // if this variable is already in the expression, its weight is
+    // incremented
+    terms = terms.add(md,1);
 
     // update input
     if (!md.isInput())
@@ -126,20 +108,20 @@ public Object clone()
 
 public String toString()
   {
-    if (sources.size() == 0)
+    if (terms.size() == 0)
       return "0";
 
     StringBuffer sb = new StringBuffer();
-    for(int i=0;i<sources.size();i++)
+    for(int i=0;i<terms.size();i++)
       {
-	int weight = ((Integer)weights.elementAt(i)).intValue();
+	int weight = terms.weights[i];
 
 	if (i>0)
 	  sb.append("+");
 
 	if (weight != 1)
 	  sb.append(weight+"*");
-	sb.append(sources.elementAt(i).toString());
+	sb.append(terms.sources[i].toString());
       }
 
     return new String(sb);
@@ -179,10 +161,10 @@ class AngleExpression extends Expression
     // do some precomputation
 
     int j=0;
-    for(int i=0;i<sources.size();i++)
+    for(int i=0;i<terms.size();i++)
       {
-	int weight = ((Integer)weights.elementAt(i)).intValue();
-	int measure = ((MeasureDependency)sources.elementAt(i)).measure;
+	int weight = terms.weights[i];
+	int measure = terms.sources[i].measure;
 
 	for(int k=0;k<weight;k++)
 	  {
@@ -271,13 +253,13 @@ class DistanceExpression extends Expression
     int x = left;
     int y = top+2;
 
-    for(int i=0;i<sources.size();i++)
+    for(int i=0;i<terms.size();i++)
       {
-	int weight = ((Integer)weights.elementAt(i)).intValue();
+	int weight = terms.weights[i];
 
 	for(int j=0;j<weight;j++)
 	  {
-	    int length = ((MeasureDependency)sources.elementAt(i)).measure;
+	    int length = terms.sources[i].measure;
 	      
 	    g.drawLine(x,y-2,x,y+2);
 
@@ -726,10 +708,10 @@ class ExpressionFrame extends Frame implements Constants
 
 	if (drawPanel.mode == ASSUME_CONSTRAINT_MODE)
 	  {
-	    // create an input constraint
+	    // create an input constraint.  Undo retracts it, so the
+	    // nullspace isn't saved.
 
-	    undo.saveState();
-	    undo.saveStep(Undo.ASSUME);
+	    undo.saveAssumeStep(c);
 
 	    if (constraintFrame.addInput(c))
 	      message("New constraint follows from existing constraints");
@@ -743,10 +725,10 @@ class ExpressionFrame extends Frame implements Constants
 	  {
 	    // test if a constraint follows from the nullspace
 
-	    if (DEBUG)
+	    if (Nullspace.debug)
 	      System.out.println("Nullspace = "+constraintFrame.nullspace);
 	      
-	    if(constraintFrame.nullspace.follows(c))
+	    if(constraintFrame.nullspace.followsExactly(c))
 	      {
 		message("New constraint proven");
 		constraintFrame.addBlankStep();
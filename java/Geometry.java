@@ -50,40 +50,53 @@ final class Geometry implements Constants
 
   static double distance(Circle c,PointShape p)
     {
-      return Math.abs(c.radius - distance(p,c.x,c.y));
+      return circleDistance(c.x,c.y,c.radius,p.x,p.y);
     }
 
   /** Distance from a point to a circle */
 
   static double distance(Circle c,double x,double y)
     {
-      return Math.abs(c.radius - distance(c.x,c.y,x,y));
+      return circleDistance(c.x,c.y,c.radius,x,y);
+    }
+
+  /** Distance from a point to the circle about (cx,cy) */
+
+  static double circleDistance(double cx,double cy,double radius,
+			       double x,double y)
+    {
+      return Math.abs(radius - distance(cx,cy,x,y));
     }
 
   /** Distance from a line shape to a point */
 
   static double distance(LineShape ls,double x,double y)
     {
-      double v1 = x - ls.x1;
-      double v2 = y - ls.y1;
+      return lineShapeDistance(ls.kind(),ls.x1,ls.y1,ls.x2,ls.y2,
+			       ls.A,ls.B,x,y);
+    }
 
-      double mag = Math.sqrt(ls.A*ls.A + ls.B*ls.B);
+  /** Distance from a point to the line shape of the given kind
+   *  through (x1,y1) and (x2,y2), rounded to a whole number */
 
-      double k1 = ls.A / mag;
-      double k2 = ls.B / mag;
+  static double lineShapeDistance(int kind,double x1,double y1,
+				  double x2,double y2,double A,double B,
+				  double x,double y)
+    {
+      double distToLine = lineDistance(x1,y1,A,B,x,y);
 
-      double distToLine = k1*v1 + k2 *v2;
+      double mag = Math.sqrt(A*A + B*B);
 
-      double projx = x + distToLine * k1;
-      double projy = y + distToLine * k2;
+      double projx = x + distToLine * (A / mag);
+      double projy = y + distToLine * (B / mag);
 
-      if (!ls.isPointOnLine(projx,projy))
+      if (!isPointOnLine(kind,x1,y1,x2,y2,projx,projy))
 	{
-	  if (ls instanceof LineSegment)
-	    distToLine = Math.min(distance(ls.x1,ls.y1,x,y),
-				  distance(ls.x2,ls.y2,x,y));
+	  if (kind == LINE_SEGMENT)
+	    distToLine = Math.min(distance(x1,y1,x,y),
+				  distance(x2,y2,x,y));
 	  else
-	    distToLine = distance(ls.x1,ls.y1,x,y);
+	    distToLine = distance(x1,y1,x,y);
 	}
 
       return Math.abs(Math.round(distToLine));
@@ -93,13 +106,22 @@ final class Geometry implements Constants
 
   static double lineDistance(LineShape ls,double x,double y)
     {
-      double v1 = x - ls.x1;
-      double v2 = y - ls.y1;
+      return lineDistance(ls.x1,ls.y1,ls.A,ls.B,x,y);
+    }
+
+  /**  The signed distance from (x,y) to the line Ax + By + C = 0
+   *   through (x1,y1) */
+
+  static double lineDistance(double x1,double y1,double A,double B,
+			     double x,double y)
+    {
+      double v1 = x - x1;
+      double v2 = y - y1;
 
-      double mag = Math.sqrt(ls.A*ls.A + ls.B*ls.B);
+      double mag = Math.sqrt(A*A + B*B);
 
-      double k1 = ls.A / mag;
-      double k2 = ls.B / mag;
+      double k1 = A / mag;
+      double k2 = B / mag;
 
       return k1*v1 + k2 *v2;
     }
@@ -111,6 +133,74 @@ final class Geometry implements Constants
       return lineDistance(ls,p.x,p.y);
     }
 
+  /** The coefficients of the line Ax + By + C = 0 through (x1,y1)
+   *  and (x2,y2) */
+
+  static double lineA(double x1,double y1,double x2,double y2)
+    {
+      return y2 - y1;
+    }
+
+  static double lineB(double x1,double y1,double x2,double y2)
+    {
+      return x1 - x2;
+    }
+
+  static double lineC(double x1,double y1,double x2,double y2)
+    {
+      return x2*y1 - x1*y2;
+    }
+
+  /** The midpoint of a and b, along one axis */
+
+  static double midpoint(double a,double b)
+    {
+      return (a+b)/2;
+    }
+
+  /** The second point of the perpendicular bisector of (ax,ay) and
+   *  (bx,by), after the midpoint (x1,y1) */
+
+  static double bisectorX(double x1,double ay,double by)
+    {
+      return x1 + by - ay;
+    }
+
+  static double bisectorY(double y1,double ax,double bx)
+    {
+      return y1 - bx + ax;
+    }
+
+  /** Is this a kind of line shape? */
+
+  static boolean isLine(int kind)
+    {
+      return kind != POINT && kind != CIRCLE;
+    }
+
+  /** Given (x,y) collinear with (x1,y1) and (x2,y2), is it on the line
+   *  shape of the given kind through them? */
+
+  static boolean isPointOnLine(int kind,double x1,double y1,
+			       double x2,double y2,double x,double y)
+    {
+      switch (kind)
+	{
+	case LINE_SEGMENT:
+	  return (sameSide(x1,y1,x,y,x2,y2) &&
+		  sameSide(x2,y2,x,y,x1,y1));
+
+	case RAY:
+	  return sameSide(x1,y1,x,y,x2,y2);
+
+	case COMPL_RAY:
+	  return !sameSide(x1,y1,x,y,x2,y2);
+
+	default:
+	  return true;
+	}
+    }
+
   /** Compute the angle of three points */
 
   static double angle(PointShape p1,PointShape apex,PointShape p2)
@@ -407,22 +497,18 @@ final class Geometry implements Constants
       boolean firstNew = true;
 
       // add the new constraints to the constaint frame
+      boolean[] redundant = cf.addProvenConstraints(v1);
       
       for(int i=0;i<v1.size();i++)
-	{
-	  Constraint c = (Constraint)v1.elementAt(i);
-
-	  if (!cf.nullspace.follows(c))
-	    {
-	      if (firstNew)
-		{
-		  firstNew = false;
-		  cf.addBlankStep();
-		}
-	      cf.addStep(c,prefix);
-	      cf.addProvenConstraint(c);
-	    }
-	}
+	if (!redundant[i])
+	  {
+	    if (firstNew)
+	      {
+		firstNew = false;
+		cf.addBlankStep();
+	      }
+	    cf.addStep((Constraint)v1.elementAt(i),prefix);
+	  }
 
       return ps;
     }
@@ -433,8 +519,6 @@ final class Geometry implements Constants
 
   static PointShape[] Intersection(Shape shape1,Shape shape2)
     {
-      PointShape[] returnValue = new PointShape[0];
-
       Shape s1, s2;
 
       // rearrange the inputs a bit
@@ -451,181 +535,281 @@ final class Geometry implements Constants
 	  s2 = shape2;
 	}
 
-      if (s1 instanceof PointShape)
-	{
-	  if (s2.isPointOnShape(((PointShape)s1).x,
-				((PointShape)s1).y))
-	    {
-	      returnValue = new PointShape[1];
+      // both shapes, then room for two points
+      double[] r = new double[18];
+      int count = intersect(r,0,store(s1,r,0),s1.valid,
+			    7,store(s2,r,7),s2.valid,r,14);
 
-	      returnValue[0] = new PointShape(((PointShape)s1).x,
-					      ((PointShape)s1).y);
-	    }
+      PointShape[] returnValue = new PointShape[count];
 
-	  return returnValue;
-	}
+      for(int i=0;i<count;i++)
+	returnValue[i] = new PointShape(r[14+2*i],r[15+2*i]);
+
+      return returnValue;
+    }
+
+  // Shapes can also be held in arrays of doubles, for ConstructionPlan.
+  // A point takes two entries (x,y), a circle three (x,y,radius), and a
+  // line shape seven (x1,y1,x2,y2,A,B,C).
+
+  /** Copy a shape into r at s
+   *
+   *  @return  The kind of the shape
+   */
+
+  static int store(Shape shape,double[] r,int s)
+    {
+      int kind = shape.kind();
 
-      if (s1 instanceof LineShape && s2 instanceof LineShape)
+      if (kind == POINT)
 	{
-	  LineShape l1 = (LineShape)s1;
-	  LineShape l2 = (LineShape)s2;
+	  PointShape p = (PointShape)shape;
+	  r[s] = p.x;
+	  r[s+1] = p.y;
+	}
+      else if (kind == CIRCLE)
+	{
+	  Circle c = (Circle)shape;
+	  r[s] = c.x;
+	  r[s+1] = c.y;
+	  r[s+2] = c.radius;
+	}
+      else
+	{
+	  LineShape ls = (LineShape)shape;
+	  r[s] = ls.x1;
+	  r[s+1] = ls.y1;
+	  r[s+2] = ls.x2;
+	  r[s+3] = ls.y2;
+	  r[s+4] = ls.A;
+	  r[s+5] = ls.B;
+	  r[s+6] = ls.C;
+	}
 
-	  double x = l1.B * l2.C - l1.C * l2.B;
-	  double y = l2.A * l1.C - l1.A * l2.C;
-	  double z = l1.A * l2.B - l2.A * l1.B;
+      return kind;
+    }
 
-	  if (z == 0)          // don't handle collinear yet
-	    return returnValue;
+  /** Intersect the shapes at s1 and s2 in r, which are in the order
+   *  Intersection() puts them in, and write the points found to out at
+   *  o.  Up to two points are written.  As with Shape.isPointOnShape(),
+   *  a point is only found on an invalid shape when no test against
+   *  that shape is needed, so valid1 and valid2 matter only for the
+   *  point and tangent cases.
+   *
+   *  @return  The number of points found
+   */
 
-	  x /= z;
-	  y /= z;
+  static int intersect(double[] r,int s1,int kind1,boolean valid1,
+		       int s2,int kind2,boolean valid2,double[] out,int o)
+    {
+      if (kind1 == POINT)
+	return meetPoint(r,s1,s2,kind2,valid2,out,o);
 
-	  if (!l1.isPointOnLine(x,y) || !l2.isPointOnLine(x,y))
-	    return returnValue;
+      if (isLine(kind1) && isLine(kind2))
+	return meetLines(r,s1,kind1,s2,kind2,out,o);
 
-	  returnValue = new PointShape[1];
+      if (isLine(kind1))
+	return meetLineCircle(r,s1,kind1,valid1,s2,out,o);
 
-	  returnValue[0] = new PointShape(x,y);
+      return meetCircles(r,s1,s2,out,o);
+    }
 
-	  return returnValue;
-	}
+  /** Is (x,y) on the shape at s in r? */
 
-      if (s1 instanceof LineShape && s2 instanceof Circle)
-	{
-	  LineShape ls = (LineShape)s1;
-	  Circle cir = (Circle)s2;
+  static boolean isPointOnShape(double[] r,int s,int kind,double x,double y)
+    {
+      if (kind == POINT)
+	return distance(r[s],r[s+1],x,y) == 0;
+
+      if (kind == CIRCLE)
+	return circleDistance(r[s],r[s+1],r[s+2],x,y) == 0;
+
+      return lineShapeDistance(kind,r[s],r[s+1],r[s+2],r[s+3],
+			       r[s+4],r[s+5],x,y) == 0;
+    }
 
-	  PointShape p1, p2;
+  /** Is (x,y) on the line shape at l in r, given that it is on the
+   *  line containing it? */
 
-	  double v1 = cir.x - ls.x1;
-	  double v2 = cir.y - ls.y1;
+  static boolean isPointOnLine(double[] r,int l,int kind,double x,double y)
+    {
+      return isPointOnLine(kind,r[l],r[l+1],r[l+2],r[l+3],x,y);
+    }
 
-	  double magsq = ls.A*ls.A + ls.B*ls.B;
+  /** The point at p in r, if it is on the shape at s and that shape
+   *  is valid */
 
-	  double k1mag = ls.A;
-	  double k2mag = ls.B;
+  static int meetPoint(double[] r,int p,int s,int kind,boolean valid,
+		       double[] out,int o)
+    {
+      if (!valid || !isPointOnShape(r,s,kind,r[p],r[p+1]))
+	return 0;
 
-	  double dmag = Math.abs(k1mag*v1 + k2mag*v2);
+      out[o] = r[p];
+      out[o+1] = r[p+1];
 
-	  if (dmag*dmag > cir.radius*cir.radius*magsq)
-	    return returnValue;
+      return 1;
+    }
 
-	  double dk1 = dmag*k1mag/magsq;
-	  double dk2 = dmag*k2mag/magsq;
+  /** The intersection of the line shapes at l1 and l2 in r */
 
-	  p1 = new PointShape(cir.x + dk1,cir.y + dk2);
+  static int meetLines(double[] r,int l1,int kind1,int l2,int kind2,
+		       double[] out,int o)
+    {
+      double x = r[l1+5] * r[l2+6] - r[l1+6] * r[l2+5];
+      double y = r[l2+4] * r[l1+6] - r[l1+4] * r[l2+6];
+      double z = r[l1+4] * r[l2+5] - r[l2+4] * r[l1+5];
 
-	  p2 = new PointShape(cir.x - dk1,cir.y - dk2);
+      if (z == 0)          // don't handle collinear yet
+	return 0;
 
-	  PointShape pointOnLine;
+      x /= z;
+      y /= z;
 
-	  if (lineDistance(ls,p1) < 2)
-//	  if (p1.p.x * ls.A + p1.p.y * ls.B + ls.C < 2)
-	    pointOnLine = p1;
-	  else
-	    pointOnLine = p2;
+      if (!isPointOnLine(r,l1,kind1,x,y) || !isPointOnLine(r,l2,kind2,x,y))
+	return 0;
 
-	  if (dmag*dmag == cir.radius*cir.radius*magsq)
-	    {
-	      if (ls.isPointOnShape(pointOnLine))
-		
-{
-		  returnValue = new PointShape[1];
-		  
-		  returnValue[0] = pointOnLine;
-		}
-	      
-	      return returnValue;
-	    }
-	  
-	  double dist = Math.sqrt((cir.radius*cir.radius - 
-				   dmag*dmag/magsq)/magsq);
-	  dk1 = dist*k1mag;
-	  dk2 = dist*k2mag;
-
-	  if (ls instanceof ComplRay)
-	    // swap the order of the points for the compl. ray
-	    // so that the point nearest to the endpoint of the ray
-	    // will be i1.
-	    {
-	      dk1 *= -1;
-	      dk2 *= -1;
-	    }
+      out[o] = x;
+      out[o+1] = y;
 
-	  // these are two points on the line and circle, but
-	  // they might not be on the line shape.
+      return 1;
+    }
+
+  /** The intersections of the line shape at l and the circle at c in
+   *  r.  A tangent point is only found if the line is valid. */
+
+  static int meetLineCircle(double[] r,int l,int kind,boolean valid,int c,
+			    double[] out,int o)
+    {
+      double cx = r[c], cy = r[c+1], radius = r[c+2];
+
+      double v1 = cx - r[l];
+      double v2 = cy - r[l+1];
+
+      double magsq = r[l+4]*r[l+4] + r[l+5]*r[l+5];
+
+      double k1mag = r[l+4];
+      double k2mag = r[l+5];
+
+      double dmag = Math.abs(k1mag*v1 + k2mag*v2);
+
+      if (dmag*dmag > radius*radius*magsq)
+	return 0;
+
+      double dk1 = dmag*k1mag/magsq;
+      double dk2 = dmag*k2mag/magsq;
+
+      double px, py;       // the point on the line nearest the center
+
+      if (lineDistance(r[l],r[l+1],r[l+4],r[l+5],cx + dk1,cy + dk2) < 2)
+	{
+	  px = cx + dk1;
+	  py = cy + dk2;
+	}
+      else
+	{
+	  px = cx - dk1;
+	  py = cy - dk2;
+	}
 
-	  PointShape i1 = new PointShape(pointOnLine.x + dk2,
-					 pointOnLine.y - dk1);
+      if (dmag*dmag == radius*radius*magsq)
+	{
+	  if (!valid || !isPointOnShape(r,l,kind,px,py))
+	    return 0;
 
-	  PointShape i2 = new PointShape(pointOnLine.x - dk2,
-					 pointOnLine.y + dk1);
+	  out[o] = px;
+	  out[o+1] = py;
 
-	  boolean i1OnShape = ls.isPointOnLine(i1);
-	  boolean i2OnShape = ls.isPointOnLine(i2);
+	  return 1;
+	}
 
-	  int count = (i1OnShape ? 1 : 0);
+      double dist = Math.sqrt((radius*radius - dmag*dmag/magsq)/magsq);
+      dk1 = dist*k1mag;
+      dk2 = dist*k2mag;
 
-	  if (i2OnShape)
-	    count++;
+      if (kind == COMPL_RAY)
+	// swap the order of the points for the compl. ray
+	// so that the point nearest to the endpoint of the ray
+	// will be i1.
+	{
+	  dk1 *= -1;
+	  dk2 *= -1;
+	}
 
-	  returnValue = new PointShape[count];
+      // these are two points on the line and circle, but
+      // they might not be on the line shape.
 
-	  if (count > 0)
-	    returnValue[0] = (i1OnShape? i1 : i2);
+      double x1 = px + dk2, y1 = py - dk1;
+      double x2 = px - dk2, y2 = py + dk1;
 
-	  if (count == 2)
-	    returnValue[1] = i2;
+      boolean i1OnShape = isPointOnLine(r,l,kind,x1,y1);
+      boolean i2OnShape = isPointOnLine(r,l,kind,x2,y2);
 
-	  return returnValue;
+      int count = 0;
+
+      if (i1OnShape)
+	{
+	  out[o] = x1;
+	  out[o+1] = y1;
+	  count++;
 	}
 
-      // otherwise, we've got two circles
+      if (i2OnShape)
+	{
+	  out[o+2*count] = x2;
+	  out[o+2*count+1] = y2;
+	  count++;
+	}
 
-      Circle c1 = (Circle)s1;
-      Circle c2 = (Circle)s2;
-      double dist = distance(c1.x,c1.y,c2.x,c2.y);
+      return count;
+    }
+
+  /** The intersections of the circles at c1 and c2 in r */
+
+  static int meetCircles(double[] r,int c1,int c2,double[] out,int o)
+    {
+      double dist = distance(r[c1],r[c1+1],r[c2],r[c2+1]);
 
-      double r1 = c1.radius;
-      double r2 = c2.radius;
+      double r1 = r[c1+2];
+      double r2 = r[c2+2];
 
       if (dist == 0)
-	return returnValue;
+	return 0;
 
       // check for no intersection
       if (r1 + r2 < dist ||
 	  r1 > r2 + dist ||
 	  r2 > r1 + dist)
-	return returnValue;
+	return 0;
 
       double a = dist/2 + (r1*r1 - r2*r2)/(2*dist);
       double c = Math.sqrt(r1*r1 - a*a);
 
-      double v1 = (c2.x - c1.x) / dist;
-      double v2 = (c2.y - c1.y) / dist;
+      double v1 = (r[c2] - r[c1]) / dist;
+      double v2 = (r[c2+1] - r[c1+1]) / dist;
 
-      double p1 = c1.x + a*v1;
-      double p2 = c1.y + a*v2;
+      double p1 = r[c1] + a*v1;
+      double p2 = r[c1+1] + a*v2;
 
       if (r1 + r2 == dist ||
 	  r1 + dist == r2 ||
 	  r2 + dist == r1)
 	{
-	  returnValue = new PointShape[1];
+	  out[o] = p1;
+	  out[o+1] = p2;
 
-	  returnValue[0] = new PointShape(p1,p2);
-
-	  return returnValue;
+	  return 1;
 	}
 
       v1 = v1 * c;
       v2 = v2 * c;
 
-      returnValue = new PointShape[2];
-      returnValue[0] = new PointShape(p1+v2,p2-v1);
-      returnValue[1] = new PointShape(p1-v2,p2+v1);
+      out[o] = p1+v2;
+      out[o+1] = p2-v1;
+      out[o+2] = p1-v2;
+      out[o+3] = p2+v1;
 
-      return returnValue;
+      return 2;
     }
 
   /** Generate a constraint for a point that is on a circle, that
@@ -126,6 +126,19 @@ public void init()
 
     classesLoaded = (getParameter("Dont Show Progress") != null);
 
+    String engine = getParameter("Proof Engine");
+
+    if (engine != null && !Nullspace.selectEngine(engine))
+      System.out.println("Warning: Unknown proof engine "+engine);
+
+    String pivotRule = getParameter("Pivot Rule");
+
+    if (pivotRule != null && !NullspaceEngine.selectPivotRule(pivotRule))
+      System.out.println("Warning: Unknown pivot rule "+pivotRule);
+
+    if (getParameter("Debug Nullspace") != null)
+      Nullspace.debug = true;
+
     // read the parameter lists
 
     autolibraries = readParams("Auto Library ");
@@ -283,6 +296,28 @@ public void init()
 		continue;
 	      }
 
+	    if (st.sval.equals("ProofEngine"))
+	      {
+		st.nextToken();
+		if (!Nullspace.selectEngine(st.sval))
+		  System.out.println("Warning: Unknown proof engine "+st.sval);
+		continue;
+	      }
+
+	    if (st.sval.equals("PivotRule"))
+	      {
+		st.nextToken();
+		if (!NullspaceEngine.selectPivotRule(st.sval))
+		  System.out.println("Warning: Unknown pivot rule "+st.sval);
+		continue;
+	      }
+
+	    if (st.sval.equals("DebugNullspace"))
+	      {
+		Nullspace.debug = true;
+		continue;
+	      }
+
 	    System.out.println("Warning: Ignoring configuration option "+
 			       st.sval);
 	  }
@@ -643,6 +678,8 @@ class Constructions extends Frame implements Constants
   {
     lf.hide();
     lf.dispose();
+    cf.diagnostics.hide();
+    cf.diagnostics.dispose();
     cf.hide();
     cf.dispose();
     editor.closeFrames();
@@ -764,11 +801,29 @@ class ConstructionPanel extends Panel implements Constants
     *
     * @param c The new construction
     * @param name The name to use in the construction list
+    * @return False if c redefines a construction that it uses, in
+    *         which case it isn't added
     */
-  void add(Construction c,String name)
+  boolean add(Construction c,String name)
     {
+      Construction old = (Construction)constructions.get(name);
+
+      if (old != null && c.uses(old))
+	{
+	  message("Redefinition of \""+name+"\" uses the old definition");
+	  return false;
+	}
+
       cList.addItem(name);    // add it to the list
-      constructions.put(name,c); // add it to the hashtable
+
+      // add it to the hashtable, replacing any old definition
+      constructions.put(name,c);
+      c.makePlan();
+
+      if (old != null)
+	Construction.replace(constructions,old,c);
+
+      return true;
     }
 
   /** Enable or disable the "View" and "Delete" menu items,
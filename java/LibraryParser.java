@@ -148,12 +148,27 @@ public class LibraryParser implements Constants
 	  
 	  readRules();
 
-	  // add the construction to the hashtable and the new constructions
+	  // add the construction to the hashtable and the new constructions,
+	  // unless it redefines a construction that it uses
 
-	  if (constructions.put(current.name,current) == null)
+	  Construction old = (Construction)constructions.get(current.name);
+
+	  if (old != null && current.uses(old))
+	    throw new ParseError(st.lineno(),"Redefinition of \""+
+				 current.name+"\" uses the old definition");
+
+	  constructions.put(current.name,current);
+	  current.makePlan();
+
+	  if (old == null)
 	    addConsts.addElement(current.name);
 	  else
-	    overwritten = true;
+	    {
+	      overwritten = true;
+
+	      // use the new definition wherever the old one was used
+	      Construction.replace(constructions,old,current);
+	    }
 	}
     }
 
@@ -0,0 +1,527 @@
+/* GRACE - Graphical Ruler and Compass Editor
+ *
+ * NullspaceBenchmark.java
+ *
+ * Compares the proof engines on the constructions in a set of libraries
+ *
+ */
+
+import java.io.*;
+import java.util.*;
+
+/** A benchmark for the proof engines.  Each construction in the given
+ *  libraries is applied over and over to fresh copies of its default
+ *  inputs, generating the same constraints that applying it in the
+ *  editor would.  Each copy is tied to the previous one by an extra
+ *  assumption, so the proof keeps growing as one connected whole.
+ *  The nullspace is copied before each copy of a construction, as Undo
+ *  does.  The same work is done with each engine type, and the time
+ *  spent in the nullspace is reported.
+ *
+ *  With -lines, the constraints PartialOrder.makeLineConstraints()
+ *  makes are first checked against those of the older generator, on
+ *  the given number of random partial orders.
+ *
+ *  Usage: java NullspaceBenchmark [-repeat n] [-lines n] library.con ...
+ */
+
+public class NullspaceBenchmark implements Constants
+{
+  /** The nullspace being measured */
+  Nullspace nullspace;
+
+  /** Number of calls to Nullspace.add */
+  int adds = 0;
+
+  /** Number of calls to Nullspace.follows */
+  int follows = 0;
+
+  /** Number of calls to add or follows that returned true */
+  int proven = 0;
+
+  /** Time spent in the nullspace, in nanoseconds */
+  long time = 0;
+
+  /** The copy of the nullspace that Undo would have saved */
+  Nullspace saved;
+
+  NullspaceBenchmark(int engineType)
+  {
+    nullspace = new Nullspace(engineType);
+  }
+
+  /** Add a constraint to the nullspace, and time it */
+
+  boolean add(Constraint c)
+  {
+    long start = System.nanoTime();
+    boolean result = nullspace.add(c);
+    time += System.nanoTime()-start;
+
+    adds ++;
+    if (result)
+      proven ++;
+
+    return result;
+  }
+
+  /** Test a constraint against the nullspace, and time it */
+
+  boolean follows(Constraint c)
+  {
+    long start = System.nanoTime();
+    boolean result = nullspace.follows(c);
+    time += System.nanoTime()-start;
+
+    follows ++;
+    if (result)
+      proven ++;
+
+    return result;
+  }
+
+  /** Add a batch of constraints to the nullspace, and time it */
+
+  boolean[] addAll(Vector constraints)
+  {
+    long start = System.nanoTime();
+    boolean[] result = nullspace.addAll(constraints);
+    time += System.nanoTime()-start;
+
+    adds += result.length;
+    for(int i=0;i<result.length;i++)
+      if (result[i])
+	proven ++;
+
+    return result;
+  }
+
+  /** Test a batch of constraints against the nullspace, and time it */
+
+  boolean[] followsAll(Vector constraints)
+  {
+    long start = System.nanoTime();
+    boolean[] result = nullspace.followsAll(constraints);
+    time += System.nanoTime()-start;
+
+    follows += result.length;
+    for(int i=0;i<result.length;i++)
+      if (result[i])
+	proven ++;
+
+    return result;
+  }
+
+  /** Apply a construction to new input points at its default
+   *  coordinates, and generate constraints the way
+   *  Construction.apply() does for the constraint window.
+   *
+   *  @param c  The construction
+   *  @param offset  How far to the right to move the inputs
+   *  @param previous  The inputs of the previous copy, or null
+   *  @param first  The inputs of the first copy, or null
+   *  @return  The input points
+   *  @exception ConstructionError  Thrown when the construction fails
+   */
+
+  PointShape[] apply(Construction c,double offset,PointShape[] previous,
+		     PointShape[] first)
+    throws ConstructionError
+  {
+    Shape[][] steps = new Shape[c.rules.size()][];
+    PointShape[] inputs = new PointShape[c.numberOfInputs];
+
+    // save the nullspace, as Undo.saveState() does before each step
+    long start = System.nanoTime();
+    saved = (Nullspace)nullspace.clone();
+    time += System.nanoTime()-start;
+
+    for(int i=0;i<inputs.length;i++)
+      {
+	Rule r = (Rule)c.rules.elementAt(i);
+
+	inputs[i] = new PointShape(r.defaultX+offset,r.defaultY);
+	inputs[i].label = r.childName[0];
+	steps[i] = new Shape[1];
+	steps[i][0] = inputs[i];
+      }
+
+    // assume the input constraints, then check them the way
+    // Construction.testAssumptions() does
+    for(int i=0;i<c.inputConstraints.size();i++)
+      add(((ConstraintRule)c.inputConstraints.elementAt(i)).create(steps));
+
+    Vector constraints = new Vector();
+
+    for(int i=0;i<c.inputConstraints.size();i++)
+      constraints.addElement(((ConstraintRule)c.inputConstraints.
+			      elementAt(i)).create(steps));
+
+    followsAll(constraints);
+
+    // tie this copy to the previous one, and check that it is tied to
+    // the first one through all the copies in between
+    if (previous != null && inputs.length >= 2)
+      {
+	Constraint tie = new Constraint();
+	tie.add(inputs[0].getDistanceMeasure(inputs[1]),1);
+	tie.add(previous[0].getDistanceMeasure(previous[1]),-1);
+	add(tie);
+
+	Constraint chain = new Constraint();
+	chain.add(inputs[0].getDistanceMeasure(inputs[1]),1);
+	chain.add(first[0].getDistanceMeasure(first[1]),-1);
+	follows(chain);
+      }
+
+    Shape[] outputs = c.applyCore(steps,true);
+
+    // the output constraints
+    constraints = new Vector();
+
+    for(int i=0;i<c.outputConstraints.size();i++)
+      constraints.addElement(((ConstraintRule)c.outputConstraints.
+			      elementAt(i)).create(steps));
+
+    addAll(constraints);
+
+    // the constraints from the partial orders of the output points
+    constraints = new Vector();
+
+    for(int i=0;i<outputs.length;i++)
+      if (outputs[i] instanceof PointShape)
+	{
+	  Vector POs = ((PointShape)outputs[i]).POs;
+
+	  for(int j=0;j<POs.size();j++)
+	    {
+	      Vector lc = ((PartialOrder)POs.elementAt(j)).
+		makeLineConstraints();
+
+	      for(int k=0;k<lc.size();k++)
+		constraints.addElement(lc.elementAt(k));
+	    }
+	}
+
+    addAll(constraints);
+
+    return inputs;
+  }
+
+  /** The constraints the older generator made for a node of a partial
+   *  order, which used all of its neighbours rather than only the
+   *  nearest ones on each side */
+
+  static Vector olderLineConstraints(PartialOrder n)
+  {
+    Vector left = n.notNewLeftSide();
+    Vector right = n.notNewRightSide();
+    Vector constraints = new Vector();
+
+    for(int i=0;i<left.size();i++)
+      for(int j=0;j<right.size();j++)
+	constraints.addElement(n.newDistanceConstraint
+			       ((PartialOrder)left.elementAt(i),
+				(PartialOrder)right.elementAt(j)));
+
+    for(int i=0;i<left.size();i++)
+      {
+	PartialOrder L = (PartialOrder)left.elementAt(i);
+	Vector TC = L.computeLeftTC();
+
+	for(int j=0;j<TC.size();j++)
+	  if (!((PartialOrder)TC.elementAt(j)).isNew)
+	    constraints.addElement(L.newDistanceConstraint
+				   ((PartialOrder)TC.elementAt(j),n));
+      }
+
+    for(int i=0;i<right.size();i++)
+      {
+	PartialOrder R = (PartialOrder)right.elementAt(i);
+	Vector TC = R.computeRightTC();
+
+	for(int j=0;j<TC.size();j++)
+	  if (!((PartialOrder)TC.elementAt(j)).isNew)
+	    constraints.addElement(R.newDistanceConstraint
+				   ((PartialOrder)TC.elementAt(j),n));
+      }
+
+    return constraints;
+  }
+
+  /** Add the constraints that makeLineConstraints() assumes a node's
+   *  order has already: dist(X,Y) + dist(Y,Z) = dist(X,Z) for every
+   *  three nodes that are not new with X <* Y <* Z, through links that
+   *  don't pass through the node itself.
+   *
+   *  @param nodes  All the nodes of the order
+   *  @param skip   The node
+   */
+
+  static void addEarlier(Nullspace nullspace,Vector nodes,PartialOrder skip)
+  {
+    Hashtable reach = new Hashtable();
+
+    for(int i=0;i<nodes.size();i++)
+      {
+	PartialOrder X = (PartialOrder)nodes.elementAt(i);
+	Vector r = new Vector();
+	Vector stack = new Vector();
+
+	stack.addElement(X);
+
+	while (stack.size() > 0)
+	  {
+	    PartialOrder Y = (PartialOrder)stack.lastElement();
+	    Vector next = Y.rightSide();
+
+	    stack.removeElementAt(stack.size()-1);
+
+	    for(int j=0;j<next.size();j++)
+	      if (next.elementAt(j) != skip && !r.contains(next.elementAt(j)))
+		{
+		  r.addElement(next.elementAt(j));
+		  stack.addElement(next.elementAt(j));
+		}
+	  }
+
+	reach.put(X,r);
+      }
+
+    for(int i=0;i<nodes.size();i++)
+      {
+	PartialOrder X = (PartialOrder)nodes.elementAt(i);
+	Vector rx = (Vector)reach.get(X);
+
+	for(int j=0;j<rx.size() && !X.isNew && X != skip;j++)
+	  {
+	    PartialOrder Y = (PartialOrder)rx.elementAt(j);
+	    Vector ry = (Vector)reach.get(Y);
+
+	    for(int k=0;k<ry.size() && !Y.isNew;k++)
+	      if (!((PartialOrder)ry.elementAt(k)).isNew)
+		nullspace.add(Y.newDistanceConstraint
+			      (X,(PartialOrder)ry.elementAt(k)));
+	  }
+      }
+  }
+
+  /** Check makeLineConstraints() on random partial orders.  Points are
+   *  put on a line one at a time, each linked to some of the points
+   *  before it in their order along the line, and new nodes stop being
+   *  new at random, as in the editor.  Each time, every constraint the
+   *  older generator would have made must follow from the constraints
+   *  made, and those addEarlier() adds.
+   *
+   *  @return  The number of older constraints that didn't follow
+   */
+
+  static int checkLines(int orders,Random random)
+  {
+    int checked = 0, made = 0, failed = 0;
+
+    for(int n=0;n<orders;n++)
+      {
+	Vector nodes = new Vector();
+	Vector fresh = new Vector();
+	int size = 3+random.nextInt(12);
+
+	while (nodes.size() < size || fresh.size() > 0)
+	  {
+	    if (nodes.size() < size && (fresh.size() == 0 ||
+					random.nextInt(3) > 0))
+	      {
+		// a new point, linked to a few of the points so far
+		PartialOrder P = new PartialOrder
+		  (new PointShape(random.nextDouble(),0));
+		int links = 1+random.nextInt(3);
+
+		for(int i=0;i<links && i<nodes.size();i++)
+		  {
+		    PartialOrder Q = (PartialOrder)nodes.elementAt
+		      (random.nextInt(nodes.size()));
+
+		    if (Q.p.x < P.p.x)
+		      PartialOrder.link(Q,P);
+		    else
+		      PartialOrder.link(P,Q);
+		  }
+
+		nodes.addElement(P);
+		fresh.addElement(P);
+	      }
+	    else
+	      {
+		PartialOrder P = (PartialOrder)fresh.elementAt
+		  (random.nextInt(fresh.size()));
+		Nullspace nullspace = new Nullspace();
+		Vector lc = P.makeLineConstraints();
+
+		fresh.removeElement(P);
+		made += lc.size();
+
+		addEarlier(nullspace,nodes,P);
+
+		for(int i=0;i<lc.size();i++)
+		  nullspace.add((Constraint)lc.elementAt(i));
+
+		Vector older = olderLineConstraints(P);
+
+		for(int i=0;i<older.size();i++)
+		  {
+		    checked ++;
+
+		    if (!nullspace.follows((Constraint)older.elementAt(i)))
+		      failed ++;
+		  }
+	      }
+	  }
+      }
+
+    System.out.println("line constraints on "+orders+" random orders: "+
+		       made+" made, "+checked+" older ones checked, "+
+		       failed+" not implied");
+
+    return failed;
+  }
+
+  /** Apply every construction the given number of times */
+
+  void run(Vector constructions,int repeat)
+  {
+    PointShape[][] previous = new PointShape[constructions.size()][];
+    PointShape[][] first = new PointShape[constructions.size()][];
+
+    for(int n=0;n<repeat;n++)
+      for(int i=0;i<constructions.size();i++)
+	{
+	  Construction c = (Construction)constructions.elementAt(i);
+
+	  try
+	    {
+	      previous[i] = apply(c,n*0.001,previous[i],first[i]);
+
+	      if (first[i] == null)
+		first[i] = previous[i];
+	    }
+	  catch (ConstructionError ce)
+	    {
+	      // skip this copy
+	    }
+	}
+  }
+
+  static public void main(String args[])
+  {
+    int repeat = 50;
+    int lines = 0;
+    Hashtable table = new Hashtable();
+    Vector constructions = new Vector();
+
+    // load the libraries
+
+    for(int i=0;i<args.length;i++)
+      {
+	if (args[i].equals("-repeat") && i+1 < args.length)
+	  {
+	    repeat = Integer.parseInt(args[++i]);
+	    continue;
+	  }
+
+	if (args[i].equals("-lines") && i+1 < args.length)
+	  {
+	    lines = Integer.parseInt(args[++i]);
+	    continue;
+	  }
+
+	Vector names = new Vector();
+	String result;
+
+	try
+	  {
+	    FileInputStream is = new FileInputStream(args[i]);
+	    result = new LibraryParser().parseStream(table,is,names);
+	    is.close();
+	  }
+	catch (IOException ioe)
+	  {
+	    result = "IO exception - "+ioe.getMessage();
+	  }
+
+	System.out.println(args[i]+": "+result);
+
+	// keep the constructions that can be placed without a user
+
+	for(int j=0;j<names.size();j++)
+	  {
+	    Construction c = (Construction)table.get(names.elementAt(j));
+	    boolean defaults = true;
+
+	    for(int k=0;k<c.numberOfInputs;k++)
+	      if (!((Rule)c.rules.elementAt(k)).hasDefaults)
+		defaults = false;
+
+	    if (defaults)
+	      constructions.addElement(c);
+	  }
+      }
+
+    if (lines > 0)
+      {
+	checkLines(lines,new Random(lines));
+
+	if (constructions.size() == 0)
+	  return;
+      }
+
+    if (constructions.size() == 0)
+      {
+	System.out.println("Usage: java NullspaceBenchmark [-repeat n] "+
+			   "[-lines n] library.con ...");
+	return;
+      }
+
+    System.out.println(constructions.size()+" constructions, "+
+		       repeat+" copies each");
+
+    for(int type=0;type<Nullspace.engineNames.length;type++)
+      {
+	// the nullspace engine is run with each of its pivot rules
+	int rules = (type == Nullspace.NULLSPACE_ENGINE ?
+		     NullspaceEngine.pivotRuleNames.length : 1);
+	int defaultRule = NullspaceEngine.pivotRule;
+
+	for(int rule=0;rule<rules;rule++)
+	  {
+	    String name = Nullspace.engineNames[type];
+
+	    if (type == Nullspace.NULLSPACE_ENGINE)
+	      {
+		NullspaceEngine.pivotRule = rule;
+		name += " ("+NullspaceEngine.pivotRuleNames[rule]+" pivots)";
+	      }
+
+	    // a short run first, so that the timed run is compiled
+	    new NullspaceBenchmark(type).run(constructions,
+					     Math.min(repeat,5));
+
+	    NullspaceBenchmark b = new NullspaceBenchmark(type);
+	    Nullspace.cacheHits = Nullspace.cacheMisses = 0;
+	    NullspaceEngine.nnzBefore = NullspaceEngine.nnzAfter = 0;
+	    PartialOrder.constraintsMade = 0;
+	    b.run(constructions,repeat);
+
+	    System.out.println(name+": "+
+			       (b.time/1000000)+" ms, "+
+			       b.adds+" adds, "+b.follows+" follows, "+
+			       b.proven+" true; "+Nullspace.cacheStatistics()+
+			       "; "+PartialOrder.constraintStatistics());
+
+	    if (type == Nullspace.NULLSPACE_ENGINE)
+	      System.out.println("  "+NullspaceEngine.pivotStatistics());
+	  }
+
+	NullspaceEngine.pivotRule = defaultRule;
+      }
+  }
+}
@@ -9,10 +9,12 @@
  *
  */
 
+import java.util.BitSet;
+import java.util.Hashtable;
 import java.util.Vector;
 
-/** A node within a partial order.  (This class name is a bit misleading;
- *  there is no overall data structure that "contains" the partial order.)
+/** A node within a partial order.  The nodes that have been linked
+ *  together are held by a LineOrder, which keeps their links.
  *  Each point on a line shape has a pointer to a partial order node on
  *  that line.  The terms "left" and "right" are used to indicate order
  *
@@ -31,36 +33,46 @@ public class PartialOrder implements Constants
   /** The point corresponding to this node. */
   PointShape p;
 
-  /** The list of PartialOrders on the left side of this node */
-  Vector leftSide = new Vector();
-
-  /** The list of PartialOrders on the right side of this node */
-  Vector rightSide = new Vector();
-
   /** Is this a new PartialOrder node?  If so, then it will be ignored
    *  when making new constraints */
   boolean isNew = true;
 
+  /** The line order holding this node, or null if this node isn't
+   *  linked to any others */
+  LineOrder line = null;
+
+  /** The id of this node within its line order */
+  int id;
+
+  /** The number of line shapes and unique angles that use this node */
+  int refs = 0;
+
+  /** Has the point let go of this node? */
+  boolean deleted = false;
+
   PartialOrder(PointShape p1)
     {
       p = p1;
       p1.POs.addElement(this);
     }
 
-  /** Connect two partial order nodes together.  L is on the left side of R */
+  /** Connect two partial order nodes together.  L is on the left side of R
+   *
+   *  @return  False if the link was refused, because R is already on the
+   *           left side of L
+   */
 
-  static void link(PartialOrder L,PartialOrder R)
+  static boolean link(PartialOrder L,PartialOrder R)
     {
-      L.rightSide.addElement(R);
-      R.leftSide.addElement(L);
+      return LineOrder.join(L,R).link(L,R);
     }
 
   /** Disconnect two partial order nodes.  L was on the left side of R */
 
   static void unlink(PartialOrder L,PartialOrder R)
     {
-      L.rightSide.removeElement(R);
-      R.leftSide.removeElement(L);
+      if (L.line != null)
+	L.line.unlink(L,R);
     }
 
   /** Delete this point from the partial order, by unlinking it from its
@@ -70,78 +82,79 @@ public class PartialOrder implements Constants
   void delete()
     // delete this point from the partial order
     {
-      for(int i=0;i<leftSide.size();i++)
-	{
-	  PartialOrder L = (PartialOrder)leftSide.elementAt(i);
+      deleted = true;
 
-	  for(int j=0;j<rightSide.size();j++)
-	    {
-	      PartialOrder R = (PartialOrder)rightSide.elementAt(j);
-
-	      link(L,R);
-	    }
-	}
-
-      for(int i=0;i<leftSide.size();i++)
+      if (line != null)
 	{
-	  PartialOrder L = (PartialOrder)leftSide.elementAt(i);
+	  LineOrder l = line;
 
-	  L.rightSide.removeElement(this);
+	  l.delete(this);
+	  l.freeIfUnused();
 	}
 
-      for(int j=0;j<rightSide.size();j++)
-	{
-	  PartialOrder R = (PartialOrder)rightSide.elementAt(j);
-
-	  R.leftSide.removeElement(this);
-	}
+      // a LineShape may still use this node, if the LineShape and _one_
+      // of the points used to create it remains from a construction.
+      // If it links the node back into a line, the line collects it
+      // once the LineShape releases it.
+    }
 
-      leftSide.removeAllElements();
-      rightSide.removeAllElements();
+  /** Note that a line shape or unique angle uses this node */
 
-      // there is a bit of a memory leak here - 
-      // this will leave PartialOrders that have no outgoing nodes
-      // however, we can't just delete them, because they might be
-      // visible from a LineShape, if the LineShape and _one_ of the
-      // points used to create it remains from a construction
+  void retain()
+    {
+      if (refs++ == 0 && line != null)
+	line.held ++;
     }
 
-  /** Compute the transitive closure consisting of all points on the right
-   *  side of this one */
+  /** Note that a line shape has let go of this node.  If nothing else
+   *  uses it, its line order may collect it. */
 
-  Vector computeRightTC()
+  void release()
     {
-      Vector ret = new Vector();
+      refs --;
 
-      for(int i=0;i<rightSide.size();i++)
-	{
-	  PartialOrder PO = (PartialOrder)rightSide.elementAt(i);
-	  
-	  ret.addElement(PO);
+      if (refs > 0)
+	return;
 
-	  mergeVectors(ret,PO.computeRightTC());
+      if (line != null)
+	{
+	  line.held --;
+	  line.collect(this);
 	}
+      else if (!deleted)
+	p.POs.removeElement(this);
+    }
+
+  /** The nodes immediately on the left side of this one */
 
-      return ret;
+  Vector leftSide()
+    {
+      return (line == null ? new Vector() : line.nodes(line.left[id]));
     }
 
-  /** Compute the transitive closure consisting of all points on the left
-   *  side of this one */
+  /** The nodes immediately on the right side of this one */
 
-  Vector computeLeftTC()
+  Vector rightSide()
     {
-      Vector ret = new Vector();
+      return (line == null ? new Vector() : line.nodes(line.right[id]));
+    }
 
-      for(int i=0;i<leftSide.size();i++)
-	{
-	  PartialOrder PO = (PartialOrder)leftSide.elementAt(i);
-	  
-	  ret.addElement(PO);
+  /** Compute the transitive closure consisting of all points on the right
+   *  side of this one.  Each point is in it once.  The result is cached
+   *  by the line order, and must not be changed. */
 
-	  mergeVectors(ret,PO.computeLeftTC());
-	}
+  Vector computeRightTC()
+    {
+      return (line == null ? new Vector() : line.rightOf(this));
+    }
+
+  /** Compute the transitive closure consisting of all points on the left
+   *  side of this one.  Each point is in it once.  The result is cached
+   *  by the line order, and must not be changed. */
 
-      return ret;
+  Vector computeLeftTC()
+    {
+      return (line == null ? new Vector() : line.leftOf(this));
     }
 
   /** Find the partial order node for a point on the same line as this one,
@@ -162,14 +175,9 @@ public class PartialOrder implements Constants
       if (p == ps)
 	return this;
 
-      for(int i=0;i<leftSide.size();i++)
-	{
-	  PartialOrder r = ((PartialOrder)leftSide.elementAt(i)).findOnLeft(ps);
-	  if (r != null)
-	    return r;
-	}
+      PartialOrder r = (line == null ? null : line.nodeOf(ps));
 
-      return null;
+      return (r != null && r.isLeftOf(this) ? r : null);
     }
 
   /** Find the partial order node for a point on the same line as this, to
@@ -180,14 +188,19 @@ public class PartialOrder implements Constants
       if (p == ps)
 	return this;
 
-      for(int i=0;i<rightSide.size();i++)
-	{
-	  PartialOrder r = ((PartialOrder)rightSide.elementAt(i)).findOnRight(ps);
-	  if (r != null)
-	    return r;
-	}
+      PartialOrder r = (line == null ? null : line.nodeOf(ps));
  
-      return null;
+      return (r != null && isLeftOf(r) ? r : null);
+    }
+
+  /** Check if this node is somewhere on the left side of another one */
+
+  boolean isLeftOf(PartialOrder R)
+    {
+      if (line == null || R.line != line)
+	return false;
+
+      return line.reaches(this,R);
     }
 
   /** Check if a point is on the given side of this point */
@@ -219,25 +232,12 @@ public class PartialOrder implements Constants
    *
    *  notNewLeftSide(p) = map(F,p.leftSide)
    *
-   *  This may include duplicates.
+   *  Each node is in it once.
    */
 
   Vector notNewLeftSide()
-       // note: may include duplicates
   {
-    Vector r = new Vector(leftSide.size());
-
-    for(int i=0;i<leftSide.size();i++)
-      {
-	PartialOrder L = (PartialOrder)leftSide.elementAt(i);
-
-	if (L.isNew)
-	  mergeVectors(r,L.notNewLeftSide());
-	else
-	  r.addElement(L);
-      }
-
-    return r;
+    return (line == null ? new Vector() : line.notNew(this,line.left));
   }
 
   /** Construct a list of points to the immediate right of this one, pretending
@@ -248,36 +248,26 @@ public class PartialOrder implements Constants
    *
    *  notNewRightSide(p) = map(F,p.rightSide)
    *
-   *  This may include duplicates.
+   *  Each node is in it once.
    */
 
   Vector notNewRightSide()
   {
-    Vector r = new Vector(rightSide.size());
-
-    for(int i=0;i<rightSide.size();i++)
-      {
-	PartialOrder R = (PartialOrder)rightSide.elementAt(i);
-
-	if (R.isNew)
-	  mergeVectors(r,R.notNewRightSide());
-	else
-	  r.addElement(R);
-      }
-
-    return r;
+    return (line == null ? new Vector() : line.notNew(this,line.right));
   }
 
   /** Generate all necessary constraints for the partial order node.
    *
    *  This method assumes that all possible constraints for the current
    *  partial order have been generated, except for those involving this
-   *  point.
+   *  point: for any X <* Y <* Z that are not new, with paths from X to
+   *  Y and from Y to Z that don't pass through this node,
+   *  dist(X,Y) + dist(Y,Z) = dist(X,Z) already follows.
    *
    *  New nodes are treated as not yet existing within the partial order,
-   *  and will not be used in any constraints.  (This is not quite true.
-   *  They will be included in the transitive closures, which means some
-   *  redundant constraints. )
+   *  and will not be used in any constraints.  They are skipped in the
+   *  transitive closures too; their own constraints come when they stop
+   *  being new.
    *
    *  Let X < Y mean X is immediately to the left of Y (not counting new
    *  nodes).  Let X <* Y mean that X is somewhere to the left of Y.
@@ -289,8 +279,30 @@ public class PartialOrder implements Constants
    *  2.  P is this node, and P < Q <* R
    *  3.  R is this node, and P <* Q < R
    *
-   *  The proof that this correctly generates all necessary constraints
-   *  is left as an exercise to the reader.
+   *  Each node is used once, no matter how many paths lead to it.
+   *
+   *  Case 1 uses every pair of neighbours, but cases 2 and 3 skip a
+   *  neighbour with another neighbour between it and this node N.  Say
+   *  L <* L2 < N on the left, with L2 used; following nearer neighbours
+   *  always ends at one that is used, since the order has no cycles.
+   *  For each A <* L, case 3 for L2 makes
+   *
+   *      dist(L,L2) + dist(L2,N) = dist(L,N)
+   *      dist(A,L2) + dist(L2,N) = dist(A,N)
+   *
+   *  No path from A to L2 through L can pass through N, which is to the
+   *  right of L2, so the constraint for A <* L <* L2 is among those
+   *  assumed above.  Then
+   *
+   *      dist(A,L) + dist(L,N) = dist(A,L) + dist(L,L2) + dist(L2,N)
+   *                            = dist(A,L2) + dist(L2,N) = dist(A,N)
+   *
+   *  which is the skipped constraint of case 3 for L.  Case 2 is the
+   *  mirror image.  The same argument for a pair L, R of case 1 would
+   *  need the constraint for L <* L2 <* R, but L2 may only be on the
+   *  left side of R through N, so it isn't assumed.
+   *
+   *  NullspaceBenchmark -lines checks this on random partial orders.
    */
 
   // make all the necessary contraints for this partial order
@@ -315,6 +327,9 @@ public class PartialOrder implements Constants
 	    }
 	}
 
+      left = nearest(left,false);
+      right = nearest(right,true);
+
       for(int i=0;i<left.size();i++)
 	{
 	  PartialOrder L = (PartialOrder)left.elementAt(i);
@@ -324,9 +339,8 @@ public class PartialOrder implements Constants
 	    {
 	      PartialOrder A = (PartialOrder)TC.elementAt(j);
 
-	      // we could probably skip this if A is new
-
-	      constraints.addElement(L.newDistanceConstraint(A,this));
+	      if (!A.isNew)
+		constraints.addElement(L.newDistanceConstraint(A,this));
 	    }
 	}
 
@@ -339,15 +353,59 @@ public class PartialOrder implements Constants
 	    {
 	      PartialOrder B = (PartialOrder)TC.elementAt(j);
 
-	      // we could probably skip this if B is new
-
-	      constraints.addElement(R.newDistanceConstraint(B,this));
+	      if (!B.isNew)
+		constraints.addElement(R.newDistanceConstraint(B,this));
 	    }
 	}
 
+      constraintsMade += constraints.size();
+
       return constraints;
     }
 
+  /** The nodes of a list that have no other node of the list between
+   *  them and this node
+   *
+   *  @param v  The immediate neighbours on one side, without duplicates
+   *  @param onRight  Are they on the right side?
+   */
+
+  static Vector nearest(Vector v,boolean onRight)
+    {
+      if (v.size() < 2)
+	return v;
+
+      Vector r = new Vector(v.size());
+
+      for(int i=0;i<v.size();i++)
+	{
+	  PartialOrder X = (PartialOrder)v.elementAt(i);
+	  boolean beyond = false;
+
+	  for(int j=0;j<v.size() && !beyond;j++)
+	    {
+	      PartialOrder Y = (PartialOrder)v.elementAt(j);
+
+	      beyond = (onRight ? Y.isLeftOf(X) : X.isLeftOf(Y));
+	    }
+
+	  if (!beyond)
+	    r.addElement(X);
+	}
+
+      return r;
+    }
+
+  /** Number of constraints made by makeLineConstraints, for statistics */
+  static int constraintsMade = 0;
+
+  /** Statistics about the constraints made by makeLineConstraints */
+
+  static String constraintStatistics()
+    {
+      return "line constraints: "+constraintsMade+" made";
+    }
+
   /** Generate a distance constraint:
    *  dist(L,R) = dist(L,this) + dist(R,this)
    */
@@ -382,17 +440,9 @@ public class PartialOrder implements Constants
     }
 
 
-  /** For debugging. */
-  int lastSearch = 0;
-
-  /** For debugging. */
-  static int searchCounter = 0;
-
   /** For debugging. */
   public String toString() 
     { 
-      searchCounter ++;
-
       StringBuffer sb = new StringBuffer();
 
       traverse(sb);
@@ -403,18 +453,10 @@ public class PartialOrder implements Constants
   /** For debugging. */
   void traverse(StringBuffer sb)
     {
-      if (lastSearch >= searchCounter)
-	return;
-
-      lastSearch = searchCounter;
-
-      connections(sb);
-
-      for(int i=0;i<leftSide.size();i++)
-	((PartialOrder)leftSide.elementAt(i)).traverse(sb);
-
-      for(int i=0;i<rightSide.size();i++)
-	((PartialOrder)rightSide.elementAt(i)).traverse(sb);
+      if (line == null)
+	connections(sb);
+      else
+	line.traverse(this,sb);
     }
      
   /** For debugging. */
@@ -427,6 +469,9 @@ public class PartialOrder implements Constants
       else
 	sb.append("\n");
 
+      Vector leftSide = leftSide();
+      Vector rightSide = rightSide();
+
       for(int i=0;i<leftSide.size();i++)
 	sb.append("  <-- "+((PartialOrder)leftSide.elementAt(i)).p.toString()
 		  +"\n");
@@ -438,3 +483,785 @@ public class PartialOrder implements Constants
       sb.append("\n");
     }
 }
+
+/** The partial order of the points on one line.  It holds its nodes by
+ *  dense ids, and the links between them as lists of ids.  A table finds
+ *  the node for a point, so a line shape finds the order that already
+ *  holds both of its points through the nodes of either one.
+ *
+ *  Each node has a rank, and the ranks are always a topological order:
+ *  a node can only be on the left side of nodes with larger ranks.  When
+ *  a link goes against the ranks, only the nodes between its ends are
+ *  reordered, as in Pearce and Kelly's dynamic topological sort.  That
+ *  search also finds any link that would make a cycle, which can only
+ *  come from a rounding error in the geometry.  Such links are refused.
+ *
+ *  For each node, a bitset holds the ids of all the nodes on its right
+ *  side, transitively, and another those on its left side.  These are
+ *  updated as links are made and removed.  The bits of a removed node
+ *  are left until the next rebuild; its id isn't given out again before
+ *  then, and only the ids of nodes still held are ever looked up.
+ *  When a removed link might have disconnected something, the bitsets
+ *  are marked stale, and recomputed before the next query.  The ids are
+ *  packed and put in rank order then too.
+ *
+ *  Two line orders that get linked together are merged.
+ */
+
+class LineOrder
+{
+  /** The nodes, by id.  Deleted nodes leave holes until the next rebuild */
+  PartialOrder[] nodes = new PartialOrder[4];
+
+  /** For each node, the ids of the nodes immediately on its left side */
+  IntList[] left = new IntList[4];
+
+  /** For each node, the ids of the nodes immediately on its right side */
+  IntList[] right = new IntList[4];
+
+  /** For each node, the ids of all the nodes on its right side */
+  BitSet[] reach = new BitSet[4];
+
+  /** For each node, the ids of all the nodes on its left side */
+  BitSet[] reachedBy = new BitSet[4];
+
+  /** The rank of each node */
+  int[] rank = new int[4];
+
+  /** The search that last visited each node */
+  int[] mark = new int[4];
+
+  /** The number of the current search.  Bumping it unmarks every node. */
+  int epoch = 0;
+
+  /** Work lists for the searches, kept to save allocating them */
+  IntList stack = new IntList();
+  IntList forward = new IntList();
+  IntList backward = new IntList();
+  IntList pool = new IntList();
+
+  /** The number of ids in use */
+  int size = 0;
+
+  /** The number of nodes, not counting holes */
+  int count = 0;
+
+  /** The number of nodes that a line shape or unique angle uses */
+  int held = 0;
+
+  /** The node for each point on the line */
+  Hashtable points = new Hashtable();
+
+  /** Do the bitsets need to be rebuilt? */
+  boolean stale = false;
+
+  /** The transitive closures computed so far, by id.  They are thrown
+   *  away whenever the partial order changes. */
+  Vector[] rightTC = null;
+  Vector[] leftTC = null;
+
+  /** Make a line order from the first two nodes that are linked on it */
+
+  LineOrder(PartialOrder P,PartialOrder Q)
+    {
+      add(P);
+      add(Q);
+    }
+
+  /** Give a node the next id, and a rank after all the others */
+
+  void add(PartialOrder n)
+    {
+      if (size == nodes.length)
+	grow(2*size);
+
+      n.line = this;
+      n.id = size;
+      nodes[size] = n;
+      left[size] = new IntList();
+      right[size] = new IntList();
+      reach[size] = new BitSet();
+      reachedBy[size] = new BitSet();
+      rank[size] = size;
+      size ++;
+      count ++;
+
+      if (n.refs > 0)
+	held ++;
+
+      if (points.get(n.p) == null)
+	points.put(n.p,n);
+
+      changed();
+    }
+
+  /** Make room for more ids */
+
+  void grow(int length)
+    {
+      PartialOrder[] newNodes = new PartialOrder[length];
+      IntList[] newLeft = new IntList[length];
+      IntList[] newRight = new IntList[length];
+      BitSet[] newReach = new BitSet[length];
+      BitSet[] newReachedBy = new BitSet[length];
+      int[] newRank = new int[length];
+      int[] newMark = new int[length];
+
+      System.arraycopy(nodes,0,newNodes,0,size);
+      System.arraycopy(left,0,newLeft,0,size);
+      System.arraycopy(right,0,newRight,0,size);
+      System.arraycopy(reach,0,newReach,0,size);
+      System.arraycopy(reachedBy,0,newReachedBy,0,size);
+      System.arraycopy(rank,0,newRank,0,size);
+      System.arraycopy(mark,0,newMark,0,size);
+
+      nodes = newNodes;
+      left = newLeft;
+      right = newRight;
+      reach = newReach;
+      reachedBy = newReachedBy;
+      rank = newRank;
+      mark = newMark;
+    }
+
+  /** The ids of the nodes, in rank order.  The ranks are all less than
+   *  the number of ids. */
+
+  int[] byRank()
+    {
+      int[] ids = new int[size];
+      int n = 0;
+
+      for(int i=0;i<size;i++)
+	ids[i] = -1;
+
+      for(int i=0;i<size;i++)
+	if (nodes[i] != null)
+	  {
+	    ids[rank[i]] = i;
+	    n ++;
+	  }
+
+      int[] r = new int[n];
+
+      n = 0;
+      for(int i=0;i<size;i++)
+	if (ids[i] >= 0)
+	  r[n++] = ids[i];
+
+      return r;
+    }
+
+  /** The nodes with the ids set in a bitset, in rank order.  The ids
+   *  of removed nodes are skipped. */
+
+  Vector inRankOrder(BitSet b)
+    {
+      IntList ids = new IntList();
+
+      for(int i=b.nextSetBit(0);i>=0;i=b.nextSetBit(i+1))
+	if (nodes[i] != null)
+	  ids.add(i);
+
+      // the ids are mostly in rank order already
+      sortByRank(ids);
+
+      return nodes(ids);
+    }
+
+  /** The node for a point on this line, or null */
+
+  PartialOrder nodeOf(PointShape ps)
+    {
+      return (PartialOrder)points.get(ps);
+    }
+
+  /** The nodes with the given ids */
+
+  Vector nodes(IntList ids)
+    {
+      Vector v = new Vector(ids.size);
+
+      for(int i=0;i<ids.size;i++)
+	v.addElement(nodes[ids.data[i]]);
+
+      return v;
+    }
+
+  /** Find the line order for two nodes that are being linked, merging
+   *  their line orders if necessary */
+
+  static LineOrder join(PartialOrder L,PartialOrder R)
+    {
+      LineOrder a = L.line;
+      LineOrder b = R.line;
+
+      if (a == null && b == null)
+	return new LineOrder(L,R);
+
+      if (a == null)
+	{
+	  b.add(L);
+	  return b;
+	}
+
+      if (b == null || a == b)
+	{
+	  if (b == null)
+	    a.add(R);
+	  return a;
+	}
+
+      // move the smaller line order into the larger one
+      if (a.size < b.size)
+	{
+	  LineOrder t = a;
+	  a = b;
+	  b = t;
+	}
+
+      // the moved nodes go after the others, keeping their order
+      int[] ids = new int[b.size];
+      int[] order = b.byRank();
+
+      for(int i=0;i<order.length;i++)
+	{
+	  a.add(b.nodes[order[i]]);
+	  ids[order[i]] = b.nodes[order[i]].id;
+	}
+
+      for(int i=0;i<b.size;i++)
+	if (b.nodes[i] != null)
+	  {
+	    int id = ids[i];
+
+	    for(int j=0;j<b.left[i].size;j++)
+	      a.left[id].add(ids[b.left[i].data[j]]);
+
+	    for(int j=0;j<b.right[i].size;j++)
+	      a.right[id].add(ids[b.right[i].data[j]]);
+	  }
+
+      a.stale = true;
+
+      return a;
+    }
+
+  /** Link L to the left side of R.  Both are in this line order.
+   *
+   *  @return  False if the link was refused, because R is already on the
+   *           left side of L
+   */
+
+  boolean link(PartialOrder L,PartialOrder R)
+    {
+      if (rank[L.id] >= rank[R.id] && !reorder(L.id,R.id))
+	{
+	  if (Nullspace.debug)
+	    System.out.println("Warning: refused to link "+L.p+" to the left "+
+			       "of "+R.p+", which would make a cycle");
+	  return false;
+	}
+
+      right[L.id].add(R.id);
+      left[R.id].add(L.id);
+
+      changed();
+
+      // nothing changes if L already reaches R, as it always does when
+      // a deleted node's neighbours are linked
+      if (stale || reach[L.id].get(R.id))
+	return true;
+
+      // L and everything on its left side now reach R and its right
+      // side, and the other way around
+      BitSet r = reach[R.id];
+      BitSet l = reachedBy[L.id];
+
+      reach[L.id].set(R.id);
+      reach[L.id].or(r);
+
+      for(int i=l.nextSetBit(0);i>=0;i=l.nextSetBit(i+1))
+	if (nodes[i] != null)
+	  {
+	    reach[i].set(R.id);
+	    reach[i].or(r);
+	  }
+
+      reachedBy[R.id].set(L.id);
+      reachedBy[R.id].or(l);
+
+      for(int i=r.nextSetBit(0);i>=0;i=r.nextSetBit(i+1))
+	if (nodes[i] != null)
+	  {
+	    reachedBy[i].set(L.id);
+	    reachedBy[i].or(l);
+	  }
+
+      return true;
+    }
+
+  /** Fix the ranks so that a link can be made from l to r, where r does
+   *  not rank after l.  The nodes that r reaches without ranking after l,
+   *  and the nodes that reach l without ranking before r, are the only
+   *  ones out of place.  Their ranks are shared out again, with those
+   *  reaching l first.
+   *
+   *  @return  False if r reaches l, so the link would make a cycle
+   */
+
+  boolean reorder(int l,int r)
+    {
+      int lower = rank[r], upper = rank[l];
+
+      if (l == r)
+	return false;
+
+      epoch ++;
+
+      if (!search(r,right,lower,upper,l,forward))
+	return false;
+
+      search(l,left,lower,upper,-1,backward);
+
+      // the ranks to share out, in order
+      int n = backward.size + forward.size;
+
+      pool.size = 0;
+      for(int i=0;i<n;i++)
+	pool.add(0);
+
+      int[] ranks = pool.data;
+
+      sortByRank(backward);
+      sortByRank(forward);
+
+      for(int i=0;i<backward.size;i++)
+	ranks[i] = rank[backward.data[i]];
+
+      for(int i=0;i<forward.size;i++)
+	ranks[backward.size+i] = rank[forward.data[i]];
+
+      for(int i=1;i<n;i++)
+	{
+	  int k = ranks[i], j = i;
+
+	  for(;j>0 && ranks[j-1] > k;j--)
+	    ranks[j] = ranks[j-1];
+
+	  ranks[j] = k;
+	}
+
+      for(int i=0;i<backward.size;i++)
+	rank[backward.data[i]] = ranks[i];
+
+      for(int i=0;i<forward.size;i++)
+	rank[forward.data[i]] = ranks[backward.size+i];
+
+      return true;
+    }
+
+  /** Find the nodes reachable from a node through the given links,
+   *  whose ranks are strictly between the bounds, and which haven't been
+   *  marked in this search already
+   *
+   *  @param start  The id to start from
+   *  @param links  The links to follow, left or right
+   *  @param stop  An id that must not be found, or -1
+   *  @param found  Set to the ids found, including start
+   *  @return  False if stop was found
+   */
+
+  boolean search(int start,IntList[] links,int lower,int upper,int stop,
+		 IntList found)
+    {
+      found.size = 0;
+      stack.size = 0;
+
+      mark[start] = epoch;
+      stack.add(start);
+
+      while (stack.size > 0)
+	{
+	  int k = stack.data[--stack.size];
+	  IntList ls = links[k];
+
+	  found.add(k);
+
+	  for(int i=0;i<ls.size;i++)
+	    {
+	      int j = ls.data[i];
+
+	      if (j == stop)
+		return false;
+
+	      if (mark[j] != epoch && rank[j] > lower && rank[j] < upper)
+		{
+		  mark[j] = epoch;
+		  stack.add(j);
+		}
+	    }
+	}
+
+      return true;
+    }
+
+  /** The nodes next to a node through the given links, looking through
+   *  new nodes to the ones beyond them.  Each node is listed once, in the
+   *  order a depth first search finds them.
+   *
+   *  @param n  The node to start from
+   *  @param links  The links to follow, left or right
+   */
+
+  Vector notNew(PartialOrder n,IntList[] links)
+    {
+      Vector r = new Vector();
+
+      epoch ++;
+      stack.size = 0;
+      pushReversed(links[n.id]);
+
+      while (stack.size > 0)
+	{
+	  int k = stack.data[--stack.size];
+
+	  if (mark[k] == epoch)
+	    continue;
+
+	  mark[k] = epoch;
+
+	  if (nodes[k].isNew)
+	    pushReversed(links[k]);
+	  else
+	    r.addElement(nodes[k]);
+	}
+
+      return r;
+    }
+
+  /** Describe every node reachable from a node, for debugging.  Left
+   *  side nodes are visited before right side ones. */
+
+  void traverse(PartialOrder n,StringBuffer sb)
+    {
+      epoch ++;
+      stack.size = 0;
+      stack.add(n.id);
+
+      while (stack.size > 0)
+	{
+	  int k = stack.data[--stack.size];
+
+	  if (mark[k] == epoch)
+	    continue;
+
+	  mark[k] = epoch;
+	  nodes[k].connections(sb);
+
+	  pushReversed(right[k]);
+	  pushReversed(left[k]);
+	}
+    }
+
+  /** Push a list of ids onto the stack, so that the first comes off
+   *  first */
+
+  void pushReversed(IntList ids)
+    {
+      for(int i=ids.size-1;i>=0;i--)
+	stack.add(ids.data[i]);
+    }
+
+  /** Sort a list of ids by rank */
+
+  void sortByRank(IntList ids)
+    {
+      for(int i=1;i<ids.size;i++)
+	{
+	  int k = ids.data[i], j = i;
+
+	  for(;j>0 && rank[ids.data[j-1]] > rank[k];j--)
+	    ids.data[j] = ids.data[j-1];
+
+	  ids.data[j] = k;
+	}
+    }
+
+  /** Unlink L from the left side of R */
+
+  void unlink(PartialOrder L,PartialOrder R)
+    {
+      right[L.id].removeValue(R.id);
+      left[R.id].removeValue(L.id);
+
+      changed();
+
+      if (stale)
+	return;
+
+      // if R can still be reached from L, nothing else has changed
+      IntList rs = right[L.id];
+
+      for(int i=0;i<rs.size;i++)
+	if (rs.data[i] == R.id || reach[rs.data[i]].get(R.id))
+	  return;
+
+      stale = true;
+    }
+
+  /** Delete a node, by linking all pairs of its left side nodes and
+   *  right side nodes, and then forgetting it.  Everything else stays in
+   *  the same order. */
+
+  void delete(PartialOrder n)
+    {
+      IntList ls = left[n.id];
+      IntList rs = right[n.id];
+
+      for(int i=0;i<ls.size;i++)
+	for(int j=0;j<rs.size;j++)
+	  link(nodes[ls.data[i]],nodes[rs.data[j]]);
+
+      for(int i=0;i<ls.size;i++)
+	right[ls.data[i]].removeValue(n.id);
+
+      for(int j=0;j<rs.size;j++)
+	left[rs.data[j]].removeValue(n.id);
+
+      remove(n);
+
+      // a neighbor with nothing on its other side is left unlinked
+      for(int i=0;i<ls.size;i++)
+	drop(ls.data[i]);
+
+      for(int j=0;j<rs.size;j++)
+	drop(rs.data[j]);
+    }
+
+  /** Collect a node that nothing uses any more.  A deleted node is
+   *  deleted properly, which collapses a chain of them into links
+   *  between the live nodes on either side.  A node with no links says
+   *  nothing about the order, and is dropped from its point.  Only the
+   *  node and its neighbors are looked at. */
+
+  void collect(PartialOrder n)
+    {
+      if (n.deleted)
+	delete(n);
+      else
+	drop(n.id);
+
+      freeIfUnused();
+    }
+
+  /** Drop the node with the given id if nothing uses it and it has no
+   *  links left */
+
+  void drop(int k)
+    {
+      PartialOrder n = nodes[k];
+
+      if (n != null && n.refs == 0 &&
+	  left[k].size == 0 && right[k].size == 0)
+	{
+	  remove(n);
+	  n.p.POs.removeElement(n);
+	}
+    }
+
+  /** Free the line order if no line shape or unique angle uses any of
+   *  its nodes, and it holds no more than the two linked points that
+   *  LineShape.makePO() would make again.  A larger order still knows
+   *  where the other points of its line are, so it is kept. */
+
+  void freeIfUnused()
+    {
+      if (held > 0 || count > 2)
+	return;
+
+      for(int i=0;i<size;i++)
+	if (nodes[i] != null)
+	  {
+	    nodes[i].line = null;
+	    nodes[i].p.POs.removeElement(nodes[i]);
+	  }
+
+      nodes = new PartialOrder[4];
+      left = new IntList[4];
+      right = new IntList[4];
+      reach = new BitSet[4];
+      reachedBy = new BitSet[4];
+      rank = new int[4];
+      mark = new int[4];
+      points = new Hashtable();
+      size = count = 0;
+      stale = false;
+      changed();
+    }
+
+  /** Take a deleted node out of the line order.  It has no links left.
+   *  Its bits in the other nodes' bitsets are left for rebuild(). */
+
+  void remove(PartialOrder n)
+    {
+      nodes[n.id] = null;
+      left[n.id] = right[n.id] = null;
+      reach[n.id] = reachedBy[n.id] = null;
+      n.line = null;
+      count --;
+
+      if (n.refs > 0)
+	held --;
+
+      // another node for the same point may take its place in the table
+      if (points.get(n.p) == n)
+	{
+	  points.remove(n.p);
+
+	  for(int i=0;i<n.p.POs.size();i++)
+	    {
+	      PartialOrder PO = (PartialOrder)n.p.POs.elementAt(i);
+
+	      if (PO.line == this)
+		{
+		  points.put(n.p,PO);
+		  break;
+		}
+	    }
+	}
+
+      changed();
+    }
+
+  /** Is L somewhere on the left side of R?  Both must be in this line
+   *  order. */
+
+  boolean reaches(PartialOrder L,PartialOrder R)
+    {
+      if (stale)
+	rebuild();
+
+      return rank[L.id] < rank[R.id] && reach[L.id].get(R.id);
+    }
+
+  /** Forget the cached transitive closures */
+
+  void changed()
+    {
+      rightTC = leftTC = null;
+    }
+
+  /** The nodes on the right side of a node in this line order, in rank
+   *  order */
+
+  Vector rightOf(PartialOrder n)
+    {
+      if (stale)
+	rebuild();
+
+      if (rightTC == null)
+	rightTC = new Vector[size];
+
+      if (rightTC[n.id] == null)
+	rightTC[n.id] = inRankOrder(reach[n.id]);
+
+      return rightTC[n.id];
+    }
+
+  /** The nodes on the left side of a node in this line order, in rank
+   *  order */
+
+  Vector leftOf(PartialOrder n)
+    {
+      if (stale)
+	rebuild();
+
+      if (leftTC == null)
+	leftTC = new Vector[size];
+
+      if (leftTC[n.id] == null)
+	leftTC[n.id] = inRankOrder(reachedBy[n.id]);
+
+      return leftTC[n.id];
+    }
+
+  /** Renumber the nodes in rank order, packing out the holes, and
+   *  recompute the bitsets */
+
+  void rebuild()
+    {
+      int[] order = byRank();
+      int n = order.length;
+
+      // renumber everything
+      int[] ids = new int[size];
+
+      for(int i=0;i<n;i++)
+	ids[order[i]] = i;
+
+      int length = Math.max(n,4);
+      PartialOrder[] newNodes = new PartialOrder[length];
+      IntList[] newLeft = new IntList[length];
+      IntList[] newRight = new IntList[length];
+
+      for(int i=0;i<n;i++)
+	{
+	  int old = order[i];
+
+	  newNodes[i] = nodes[old];
+	  newNodes[i].id = i;
+	  newLeft[i] = left[old];
+	  newRight[i] = right[old];
+
+	  for(int j=0;j<newLeft[i].size;j++)
+	    newLeft[i].data[j] = ids[newLeft[i].data[j]];
+
+	  for(int j=0;j<newRight[i].size;j++)
+	    newRight[i].data[j] = ids[newRight[i].data[j]];
+	}
+
+      nodes = newNodes;
+      left = newLeft;
+      right = newRight;
+      reach = new BitSet[length];
+      reachedBy = new BitSet[length];
+      rank = new int[length];
+      mark = new int[length];
+      size = n;
+
+      // each node reaches its right side, and whatever they reach
+      for(int i=n-1;i>=0;i--)
+	{
+	  BitSet b = new BitSet(n);
+	  IntList rs = right[i];
+
+	  for(int j=0;j<rs.size;j++)
+	    {
+	      b.set(rs.data[j]);
+	      b.or(reach[rs.data[j]]);
+	    }
+
+	  reach[i] = b;
+	  rank[i] = i;
+	}
+
+      // and is reached by its left side, and whatever reaches them
+      for(int i=0;i<n;i++)
+	{
+	  BitSet b = new BitSet(n);
+	  IntList ls = left[i];
+
+	  for(int j=0;j<ls.size;j++)
+	    {
+	      b.set(ls.data[j]);
+	      b.or(reachedBy[ls.data[j]]);
+	    }
+
+	  reachedBy[i] = b;
+	}
+
+      stale = false;
+      changed();
+    }
+}
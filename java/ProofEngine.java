@@ -0,0 +1,2052 @@
+/* GRACE - Graphical Ruler and Compass Editor
+ *
+ * ProofEngine.java
+ *
+ * The engines that store the space of proven constraints for the
+ * Nullspace
+ *
+ */
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.Vector;
+
+/** Stores the space spanned by the proven constraints, and answers
+ *  whether a constraint lies in that space.  The Nullspace converts
+ *  constraints to rows and keeps track of the variables; an engine
+ *  only ever sees rows.
+ *
+ *  The Nullspace tells the engine about each variable before any
+ *  row that uses it is added or tested.  The Nullspace gives each
+ *  engine a block of variables of its own, numbered from 0.
+ *
+ *  Every row added is kept as a source, with the id of the constraint
+ *  it was made from, so that the constraint can be retracted later.
+ */
+
+abstract class ProofEngine implements Constants
+{
+  /** The generation of the Nullspace that may change this engine */
+  int generation;
+
+  /** The rows that have been added, numbered in the order they were
+   *  added.  Null once retracted.  Copies of the engine share them. */
+  PersistentArray sources = new PersistentArray();
+
+  /** The id of the constraint each source was made from.  Rows that
+   *  were made from no constraint or from one that isn't an assumption,
+   *  or that project() left, have id 0 and can't be retracted. */
+  PersistentIntArray sourceIds = new PersistentIntArray();
+
+  /** The number of sources */
+  int numSources = 0;
+
+  /** Add a row to the proven space
+   *
+   *  @return  True if the row was already in the proven space
+   */
+  abstract boolean add(Row r);
+
+  /** Add a row made from the constraint with the given id
+   *
+   *  @return  True if the row was already in the proven space
+   */
+  boolean add(Row r,int id)
+    {
+      addSource(r,id);
+      return add(r);
+    }
+
+  /** Keep a row that is known to be in the proven space already,
+   *  made from the constraint with the given id, so that it is not
+   *  lost if the constraints it follows from are retracted */
+  void addFollowing(Row r,int id)
+    {
+      addSource(r,id);
+    }
+
+  /** Remove the rows made from the constraint with the given id from
+   *  the proven space.  Only the part of the engine that depends on
+   *  them is changed.
+   *
+   *  @return  False if there are no such rows
+   */
+  abstract boolean retract(int id);
+
+  /** The numbers of this engine's sources made from the constraint
+   *  with the given id, retracted or not.  The sources are searched,
+   *  since constraints are seldom retracted. */
+  IntList sourcesOf(int id)
+    {
+      IntList l = new IntList();
+
+      if (id != 0)
+	for(int i=0;i<numSources;i++)
+	  if (sourceIds.get(i) == id)
+	    l.add(i);
+
+      return l;
+    }
+
+  /** Was a row that is not yet retracted made from the constraint with
+   *  the given id? */
+  boolean hasSource(int id)
+    {
+      IntList l = sourcesOf(id);
+
+      for(int i=0;i<l.size;i++)
+	if (sources.get(l.data[i]) != null)
+	  return true;
+
+      return false;
+    }
+
+  /** Keep a new source
+   *
+   *  @return  Its number
+   */
+  int addSource(Row r,int id)
+    {
+      int n = numSources++;
+
+      sources.set(n,r);
+      sourceIds.set(n,id);
+
+      return n;
+    }
+
+  /** Forget all the sources */
+  void clearSources()
+    {
+      sources = new PersistentArray();
+      sourceIds = new PersistentIntArray();
+      numSources = 0;
+    }
+
+  /** Take over the sources of another engine, whose variables are
+   *  numbered from the given offset on in this engine
+   *
+   *  @return  The number its first source gets here
+   */
+  int mergeSources(ProofEngine other,int offset)
+    {
+      int first = numSources;
+
+      for(int i=0;i<other.numSources;i++)
+	{
+	  Row r = (Row)other.sources.get(i);
+
+	  addSource(r != null ? r.shift(offset) : null,other.sourceIds.get(i));
+	}
+
+      return first;
+    }
+
+  /** Give a copy the same sources.  They are shared, so this takes
+   *  constant time, and either engine may change them afterwards. */
+  void copySources(ProofEngine copy)
+    {
+      copy.sources = sources.copy();
+      copy.sourceIds = sourceIds.copy();
+      copy.numSources = numSources;
+    }
+
+  /** Replace the sources by a basis of the proven constraints that
+   *  don't use the given variables, which can no longer be retracted.
+   *  Call this before the engine itself projects out the variables. */
+  void projectSources(IntList dead)
+    {
+      EchelonEngine e = new EchelonEngine();
+
+      for(int i=0;i<dead.size;i++)
+	e.addVariable(dead.data[i]);
+
+      for(int i=0;i<numSources;i++)
+	if (sources.get(i) != null)
+	  {
+	    Row r = (Row)sources.get(i);
+
+	    for(int j=0;j<r.vars.length;j++)
+	      if (r.vars[j] >= e.columns.length || e.columns[r.vars[j]] == null)
+		e.addVariable(r.vars[j]);
+
+	    e.add(r);
+	  }
+
+      e.project(dead);
+      clearSources();
+
+      for(int i=0;i<e.pivots.length;i++)
+	if (e.pivots[i] != null)
+	  addSource(e.pivots[i],0);
+    }
+
+  /** Check if a row is in the proven space */
+  abstract boolean follows(Row r);
+
+  /** Check if a row is in the proven space, using exact arithmetic
+   *  even if follows() doesn't */
+  boolean followsExactly(Row r)
+    {
+      return follows(r);
+    }
+
+  /** Prepare for a new variable, with the given id */
+  abstract void addVariable(int id);
+
+  /** The ids of the variables the engine knows */
+  abstract IntList variables();
+
+  /** Forget all proven constraints, their sources and all variables */
+  abstract void clear();
+
+  /** Take over the variables and rows of another engine of the same
+   *  type.  Its variables are numbered from the given offset on in
+   *  this engine, which must not use those numbers yet. */
+  abstract void merge(ProofEngine other,int offset);
+
+  /** Eliminate some variables from the proven space.  Afterwards it
+   *  holds exactly the proven constraints that don't use them, and
+   *  the engine has forgotten the variables. */
+  abstract void project(IntList dead);
+
+  /** Add the rows, nonzeros and coefficients of this engine to a set
+   *  of metrics */
+  abstract void measure(NullspaceMetrics m);
+
+  /** Make an independent copy of this engine */
+  abstract ProofEngine copy();
+
+  /** Generate a textual representation, using the names of the variables
+   *
+   *  @param variables  The variables, indexed by id
+   */
+  abstract String toString(Object[] variables);
+
+  /** Does a row have a variable that is set in the given array? */
+
+  static boolean usesAny(Row r,boolean[] vars)
+    {
+      for(int i=0;i<r.vars.length;i++)
+	if (r.vars[i] < vars.length && vars[r.vars[i]])
+	  return true;
+
+      return false;
+    }
+
+  /** Grow an array of lists so that it can be indexed by id */
+
+  static IntList[] ensureCapacity(IntList[] columns,int id)
+    {
+      if (id < columns.length)
+	return columns;
+
+      IntList[] cols = new IntList[Math.max(2*columns.length,id+1)];
+      System.arraycopy(columns,0,cols,0,columns.length);
+
+      return cols;
+    }
+
+  /** Copy an array of lists, so that the copy can be changed
+   *  independently */
+
+  static IntList[] copyColumns(IntList[] columns)
+    {
+      IntList[] cols = new IntList[columns.length];
+
+      for(int i=0;i<columns.length;i++)
+	if (columns[i] != null)
+	  cols[i] = (IntList)columns[i].clone();
+
+      return cols;
+    }
+}
+
+/** The original engine, which stores the nullspace of the proven
+ *  constraints: a basis for the space of all vectors orthogonal to
+ *  every proven constraint.  A constraint follows if it is orthogonal
+ *  to every row of the nullspace.
+ *  
+ *  The nullspace conceptually starts out as a giant identity matrix,
+ *  with an entry for every possible variable.  In practice, the
+ *  nullspace begins empty.  When a constraint containing a new variable
+ *  is added to the matrix, a new row is first added to the nullspace
+ *  corresponding to that variable.  So the number of rows is the number
+ *  of variables less the number of independent proven constraints.
+ *
+ *  The engine also keeps an index from each variable to the rows
+ *  that use it.  A row that shares no variable with a constraint has
+ *  a zero product with it, so add() and follows() only need to look
+ *  at the rows listed for the constraint's variables.
+ *
+ *  To retract a constraint, the engine keeps the row of the nullspace
+ *  that each independent source removed, its shadow.  Each shadow is
+ *  made orthogonal to every source added after it, as the rows of the
+ *  nullspace are, but not to its own source.  Putting the shadows of
+ *  the retracted sources back into the nullspace gives the nullspace
+ *  of the other independent sources.
+ */
+
+class NullspaceEngine extends ProofEngine
+{
+  /** The rows of the nullspace.  The order of the rows is not
+   *  significant; a row may be moved when another row is removed. */
+  Vector rows = new Vector();
+
+  /** An inverted index of the rows, indexed by variable id.  For each
+   *  variable, the list of positions (in rows) of the rows that have
+   *  a nonzero coefficient for that variable.  Null for variables that
+   *  the nullspace doesn't contain. */
+  IntList[] columns = new IntList[16];
+
+  /** Marks for collecting rows without duplicates; a row has been
+   *  collected if its mark equals markCounter */
+  int[] rowMarks = new int[16];
+
+  /** The current mark */
+  int markCounter = 0;
+
+  /** The total number of nonzero coefficients in the rows */
+  int nnz = 0;
+
+  /** The shadow of each source, or null if it has none.  Only sources
+   *  that can be retracted and that were not yet in the proven space
+   *  when they were added have one.  Copies of the engine share them. */
+  PersistentArray shadows = new PersistentArray();
+
+  /** The sources that have a shadow.  Only assumptions can be
+   *  retracted, so there are few. */
+  IntList shadowed = new IntList();
+
+  /** Pivot rule: the row with the smallest product with the new
+   *  constraint (the original rule) */
+  static final int SMALLEST_PIVOT = 0;
+
+  /** Pivot rule: the row with the fewest nonzeros, among the rows
+   *  whose products are not much larger than the smallest.  Every
+   *  other affected row gets the pivot row's terms, so this is the
+   *  Markowitz rule, with a bound on the size of the multipliers. */
+  static final int MARKOWITZ_PIVOT = 1;
+
+  /** The names of the pivot rules, as used in the configuration */
+  static final String[] pivotRuleNames = { "Smallest", "Markowitz" };
+
+  /** The pivot rule used by add() */
+  static int pivotRule = MARKOWITZ_PIVOT;
+
+  /** How many bits longer than the smallest product the product of a
+   *  Markowitz pivot may be */
+  static final int PIVOT_TOLERANCE = 4;
+
+  /** The total number of nonzeros in the engines before and after each
+   *  call to add(), summed over all calls, to measure fill-in */
+  static long nnzBefore = 0, nnzAfter = 0;
+
+  /** Select the pivot rule by name
+   *
+   *  @return  False if there is no rule with that name
+   */
+
+  static boolean selectPivotRule(String name)
+    {
+      for(int i=0;i<pivotRuleNames.length;i++)
+	if (pivotRuleNames[i].equals(name))
+	  {
+	    pivotRule = i;
+	    return true;
+	  }
+
+      return false;
+    }
+
+  /** Report the fill-in caused by add() */
+
+  static String pivotStatistics()
+    {
+      return "pivot rule "+pivotRuleNames[pivotRule]+": "+nnzBefore+
+	" nonzeros before adds, "+nnzAfter+" after";
+    }
+
+  boolean add(Row newRow)
+    {
+      nnzBefore += nnz;
+
+      boolean result = addRow(newRow,-1);
+
+      nnzAfter += nnz;
+
+      return result;
+    }
+
+  boolean add(Row newRow,int id)
+    {
+      int source = addSource(newRow,id);
+
+      nnzBefore += nnz;
+
+      boolean result = addRow(newRow,id != 0 ? source : -1);
+
+      nnzAfter += nnz;
+
+      return result;
+    }
+
+  /** Add a row, as add()
+   *
+   *  @param source  The source to give the removed row as its shadow,
+   *                 or -1
+   */
+
+  boolean addRow(Row newRow,int source)
+    {
+      // only rows that share a variable with the new row can have
+      // a nonzero product with it
+      IntList candidates = findRows(newRow);
+
+      int nk = candidates.size;
+      int[] affected = new int[nk];
+      long[] Nx = new long[nk];
+      int numAffected = 0;
+
+      // The entries of Nx as BigIntegers, if any of them doesn't fit
+      // in a long.  Null otherwise.
+      BigInteger[] bigNx = null;
+
+      int pivot = -1;
+
+      // compute N * x, where N is the nullspace and x is the new row
+      // (entries not computed here are zero)
+
+      for(int i=0;i<nk;i++)
+	{
+	  int r = candidates.data[i];
+	  Row row = (Row)rows.elementAt(r);
+	  BigInteger big = null;
+	  long product;
+
+	  try
+	    {
+	      product = Row.dot(row,newRow);
+	    }
+	  catch (ArithmeticException ae)
+	    {
+	      big = Row.bigDot(row,newRow);
+	      product = big.signum();
+	    }
+
+	  if (product != 0)
+	    {
+	      if (big != null && bigNx == null)
+		{
+		  // switch Nx over to BigIntegers
+		  bigNx = new BigInteger[nk];
+		  for(int j=0;j<numAffected;j++)
+		    bigNx[j] = BigInteger.valueOf(Nx[j]);
+		}
+
+	      if (bigNx != null)
+		bigNx[numAffected] = (big != null ? big :
+				      BigInteger.valueOf(product));
+
+	      affected[numAffected] = r;
+	      Nx[numAffected] = product;
+	      pivot = numAffected++;
+	    }
+	}
+
+      // test if the new constraint was already consistent
+
+      if (numAffected == 0)
+	return true;
+
+      // select the entry with the smallest nonzero magnitude
+      // to minimize stability problems 
+      for(int i=0;i<numAffected;i++)
+	if (bigNx == null ? Math.abs(Nx[i]) < Math.abs(Nx[pivot]) :
+	    bigNx[i].abs().compareTo(bigNx[pivot].abs()) < 0)
+	  pivot = i;
+
+      if (pivotRule == MARKOWITZ_PIVOT)
+	{
+	  // among the entries not much larger than that, select the
+	  // one whose row has the fewest nonzeros, to limit fill-in
+	  int limit = bitLength(Nx,bigNx,pivot)+PIVOT_TOLERANCE;
+	  int best = pivot;
+
+	  for(int i=0;i<numAffected;i++)
+	    if (((Row)rows.elementAt(affected[i])).size() <
+		((Row)rows.elementAt(affected[best])).size() &&
+		bitLength(Nx,bigNx,i) <= limit)
+	      best = i;
+
+	  pivot = best;
+	}
+
+      if (Nullspace.debug)
+	{
+	  System.out.print("pivot = "+affected[pivot]+", Nx=[");
+	  for(int i=0;i<numAffected;i++)
+	    System.out.print(affected[i]+":"+
+			     (bigNx == null ? ""+Nx[i] : ""+bigNx[i])+" ");
+	  System.out.println("]");
+	}
+
+      Row pivotRow = (Row)rows.elementAt(affected[pivot]);
+
+      // compute the new nullspace from linear combinations of pairs
+      // of rows from the old nullspace.  Rows with a zero product
+      // are unchanged.
+
+      for(int i=0;i<numAffected;i++)
+	{
+	  if (i==pivot)
+	    continue;
+
+	  Row old = (Row)rows.elementAt(affected[i]);
+	  Row r;
+
+	  if (bigNx == null)
+	    r = Row.linComb(Nx[i],pivotRow,-Nx[pivot],old);
+	  else
+	    r = Row.linComb(bigNx[i],pivotRow,bigNx[pivot].negate(),old);
+
+	  setRow(affected[i],r);
+	}
+
+      // the shadows are made orthogonal to the new row the same way
+
+      for(int i=0;i<shadowed.size;i++)
+	{
+	  Row old = (Row)shadows.get(shadowed.data[i]);
+	  Row r = orthogonalize(old,newRow,pivotRow,Nx[pivot],
+				bigNx == null ? null : bigNx[pivot]);
+
+	  if (r != old)
+	    shadows.set(shadowed.data[i],r);
+	}
+
+      if (source >= 0)
+	{
+	  shadows.set(source,pivotRow);
+	  shadowed.add(source);
+	}
+
+      removeRow(affected[pivot]);
+
+      return false;
+    }
+
+  /** Combine a row with the pivot row so that it is orthogonal to the
+   *  new row, as add() does for the rows of the nullspace
+   *
+   *  @param Np     The product of the pivot row and the new row
+   *  @param bigNp  The same, if it doesn't fit in a long; else null
+   *  @return       The row itself if it is orthogonal already
+   */
+
+  static Row orthogonalize(Row old,Row newRow,Row pivotRow,long Np,
+			   BigInteger bigNp)
+    {
+      BigInteger big = null;
+      long product;
+
+      try
+	{
+	  product = Row.dot(old,newRow);
+	}
+      catch (ArithmeticException ae)
+	{
+	  big = Row.bigDot(old,newRow);
+	  product = big.signum();
+	}
+
+      if (product == 0)
+	return old;
+
+      if (big == null && bigNp == null)
+	return Row.linComb(product,pivotRow,-Np,old);
+
+      return Row.linComb(big != null ? big : BigInteger.valueOf(product),
+			 pivotRow,
+			 (bigNp != null ? bigNp : BigInteger.valueOf(Np)).negate(),
+			 old);
+    }
+
+  /** The shadows of the retracted sources are put back into the
+   *  nullspace.  The remaining sources that were not in the proven
+   *  space when they were added are still independent, and orthogonal
+   *  to the result, so it is their nullspace.  The other remaining
+   *  sources are combinations of them and the retracted sources; those
+   *  that share no variable with a shadow put back still follow, and
+   *  the rest are added again if they don't. */
+
+  boolean retract(int id)
+    {
+      if (!hasSource(id))
+	return false;
+
+      IntList made = sourcesOf(id);
+      boolean[] touched = new boolean[columns.length];
+
+      for(int i=0;i<made.size;i++)
+	{
+	  int n = made.data[i];
+	  Row s = (Row)shadows.get(n);
+
+	  sources.set(n,null);
+
+	  if (s != null)
+	    {
+	      shadows.set(n,null);
+	      shadowed.removeValue(n);
+
+	      for(int j=0;j<s.vars.length;j++)
+		{
+		  touched[s.vars[j]] = true;
+		  columns[s.vars[j]].add(rows.size());
+		}
+
+	      rows.addElement(s);
+	      nnz += s.size();
+	    }
+	}
+
+      for(int i=0;i<numSources;i++)
+	{
+	  Row r = (Row)sources.get(i);
+
+	  if (r != null && usesAny(r,touched) && !follows(r))
+	    addRow(r,sourceIds.get(i) != 0 ? i : -1);
+	}
+
+      return true;
+    }
+
+  void measure(NullspaceMetrics m)
+    {
+      m.rows += rows.size();
+      m.nonzeros += nnz;
+
+      for(int i=0;i<rows.size();i++)
+	m.coefficients((Row)rows.elementAt(i));
+    }
+
+  /** The number of bits in the magnitude of an entry of Nx */
+
+  static int bitLength(long[] Nx,BigInteger[] bigNx,int i)
+    {
+      if (bigNx != null)
+	return bigNx[i].bitLength();
+
+      return 64-Long.numberOfLeadingZeros(Math.abs(Nx[i]));
+    }
+
+  boolean follows(Row newRow)
+    {
+      // compute N*x, for the rows that share a variable with x
+
+      for(int i=0;i<newRow.vars.length;i++)
+	{
+	  IntList col = columns[newRow.vars[i]];
+
+	  for(int j=0;j<col.size;j++)
+	    if (!Row.isOrthogonal(newRow,(Row)rows.elementAt(col.data[j])))
+	      return false;
+	}
+
+      return true;
+    }
+
+  /** Collect the positions of all rows that have a nonzero coefficient
+   *  for at least one of the variables of a given row.
+   *
+   *  @return  The row positions, each listed once
+   */
+
+  IntList findRows(Row row)
+    {
+      if (rowMarks.length < rows.size())
+	rowMarks = new int[2*rows.size()];
+
+      markCounter ++;
+
+      IntList found = new IntList();
+
+      for(int i=0;i<row.vars.length;i++)
+	{
+	  IntList col = columns[row.vars[i]];
+
+	  for(int j=0;j<col.size;j++)
+	    {
+	      int r = col.data[j];
+
+	      if (rowMarks[r] != markCounter)
+		{
+		  rowMarks[r] = markCounter;
+		  found.add(r);
+		}
+	    }
+	}
+
+      return found;
+    }
+
+  /** Replace the row at the given position, and update the index */
+
+  void setRow(int position,Row r)
+    {
+      Row old = (Row)rows.elementAt(position);
+
+      for(int i=0;i<old.vars.length;i++)
+	columns[old.vars[i]].removeValue(position);
+
+      rows.setElementAt(r,position);
+
+      for(int i=0;i<r.vars.length;i++)
+	columns[r.vars[i]].add(position);
+
+      nnz += r.size()-old.size();
+    }
+
+  /** Remove the row at the given position.  The last row is moved
+   *  into its place, and the index is updated. */
+
+  void removeRow(int position)
+    {
+      Row old = (Row)rows.elementAt(position);
+
+      for(int i=0;i<old.vars.length;i++)
+	columns[old.vars[i]].removeValue(position);
+
+      nnz -= old.size();
+
+      int last = rows.size()-1;
+
+      if (position != last)
+	{
+	  Row moved = (Row)rows.elementAt(last);
+
+	  for(int i=0;i<moved.vars.length;i++)
+	    columns[moved.vars[i]].replaceValue(last,position);
+
+	  rows.setElementAt(moved,position);
+	}
+
+      rows.removeElementAt(last);
+    }
+
+  /** Add a row with a coefficient of 1 for the new variable */
+
+  void addVariable(int id)
+    {
+      columns = ensureCapacity(columns,id);
+
+      IntList col = new IntList();
+      col.add(rows.size());
+
+      rows.addElement(new Row(id,1));
+      columns[id] = col;
+      nnz ++;
+    }
+
+  IntList variables()
+    {
+      IntList vars = new IntList();
+
+      for(int i=0;i<columns.length;i++)
+	if (columns[i] != null)
+	  vars.add(i);
+
+      return vars;
+    }
+
+  void clear()
+    {
+      rows.removeAllElements();
+      columns = new IntList[16];
+      nnz = 0;
+      clearSources();
+    }
+
+  void clearSources()
+    {
+      super.clearSources();
+      shadows = new PersistentArray();
+      shadowed = new IntList();
+    }
+
+  /** A constraint on the remaining variables is orthogonal to a row
+   *  exactly when it is orthogonal to the row without the eliminated
+   *  variables.  So the new nullspace is spanned by the rows with
+   *  those variables dropped.  The rows may no longer be independent,
+   *  so a basis is found by putting them in echelon form. */
+
+  void project(IntList dead)
+    {
+      projectSources(dead);
+
+      boolean[] isDead = new boolean[columns.length];
+
+      for(int i=0;i<dead.size;i++)
+	{
+	  isDead[dead.data[i]] = true;
+	  columns[dead.data[i]] = null;
+	}
+
+      EchelonEngine e = new EchelonEngine();
+
+      for(int i=0;i<columns.length;i++)
+	if (columns[i] != null)
+	  e.addVariable(i);
+
+      for(int i=0;i<rows.size();i++)
+	{
+	  Row r = ((Row)rows.elementAt(i)).remove(isDead);
+
+	  if (r.size() > 0)
+	    e.add(r);
+	}
+
+      rows.removeAllElements();
+      nnz = 0;
+
+      for(int i=0;i<columns.length;i++)
+	if (columns[i] != null)
+	  columns[i] = new IntList();
+
+      for(int i=0;i<e.pivots.length;i++)
+	if (e.pivots[i] != null)
+	  {
+	    Row r = e.pivots[i];
+
+	    for(int j=0;j<r.vars.length;j++)
+	      columns[r.vars[j]].add(rows.size());
+
+	    rows.addElement(r);
+	    nnz += r.size();
+	  }
+    }
+
+  void merge(ProofEngine other,int offset)
+    {
+      NullspaceEngine e = (NullspaceEngine)other;
+
+      int first = mergeSources(e,offset);
+      columns = ensureCapacity(columns,offset+e.columns.length-1);
+
+      for(int i=0;i<e.columns.length;i++)
+	if (e.columns[i] != null)
+	  columns[i+offset] = new IntList();
+
+      for(int i=0;i<e.shadowed.size;i++)
+	{
+	  int n = e.shadowed.data[i];
+
+	  shadows.set(first+n,((Row)e.shadows.get(n)).shift(offset));
+	  shadowed.add(first+n);
+	}
+
+      for(int i=0;i<e.rows.size();i++)
+	{
+	  Row r = ((Row)e.rows.elementAt(i)).shift(offset);
+
+	  for(int j=0;j<r.vars.length;j++)
+	    columns[r.vars[j]].add(rows.size());
+
+	  rows.addElement(r);
+	}
+
+      nnz += e.nnz;
+    }
+
+  ProofEngine copy()
+    {
+      NullspaceEngine e = new NullspaceEngine();
+
+      // the rows are shared, but the index is changed in place
+      e.rows = (Vector)rows.clone();
+      e.columns = copyColumns(columns);
+      e.nnz = nnz;
+      copySources(e);
+      e.shadows = shadows.copy();
+      e.shadowed = (IntList)shadowed.clone();
+
+      return e;
+    }
+
+  String toString(Object[] variables)
+    {
+      StringBuffer sb = new StringBuffer("(");
+
+      for(int i=0;i<rows.size();i++)
+	{
+	  sb.append(((Row)rows.elementAt(i)).toString(variables));
+	  if (i+1<rows.size())
+	    sb.append(",\n   ");
+	}
+
+      sb.append(")");
+
+      return new String(sb);
+    }
+}
+
+/** An engine that stores the proven constraints themselves, in
+ *  reduced row-echelon form.  Each row has a pivot variable, which has
+ *  a nonzero coefficient in that row and a zero coefficient in every
+ *  other row.  A constraint follows if eliminating the pivot variables
+ *  from it leaves nothing.
+ *
+ *  The number of rows is the number of independent proven constraints,
+ *  and does not grow with the number of variables.
+ *
+ *  Each row also records the sources it is a combination of, so a
+ *  constraint can be retracted without rebuilding the whole engine.
+ *  Only the rows made from it are dropped, and the sources those rows
+ *  were made from are added again.  A source that already followed
+ *  when it was added is added again if it followed from rows made from
+ *  the retracted constraint.
+ */
+
+class EchelonEngine extends ProofEngine
+{
+  /** The rows, indexed by the id of their pivot variable.  Null for
+   *  variables that are not a pivot. */
+  Row[] pivots = new Row[16];
+
+  /** An inverted index of the rows, indexed by variable id.  For each
+   *  variable, the pivots of the rows that have a nonzero coefficient
+   *  for that variable.  Null for variables the engine doesn't know. */
+  IntList[] columns = new IntList[16];
+
+  /** The number of rows */
+  int numRows = 0;
+
+  /** The sources each row is a combination of, indexed by pivot.  The
+   *  sets are never changed once made, so copies can share them. */
+  BitSet[] provenance = new BitSet[16];
+
+  /** For each source that already followed when it was added, the
+   *  sources of the rows it followed from, or UNKNOWN.  Null for the
+   *  other sources.  Copies of the engine share it. */
+  PersistentArray depends = new PersistentArray();
+
+  /** Marks a source that followed from rows that are not known */
+  static final BitSet UNKNOWN = new BitSet();
+
+  boolean add(Row newRow)
+    {
+      return add(newRow,0);
+    }
+
+  boolean add(Row newRow,int id)
+    {
+      return insert(newRow,addSource(newRow,id));
+    }
+
+  void addFollowing(Row r,int id)
+    {
+      depends.set(addSource(r,id),UNKNOWN);
+    }
+
+  int addSource(Row r,int id)
+    {
+      int n = super.addSource(r,id);
+
+      depends.set(n,null);
+
+      return n;
+    }
+
+  void clearSources()
+    {
+      super.clearSources();
+      depends = new PersistentArray();
+    }
+
+  /** Add the row of a source to the proven space
+   *
+   *  @return  True if the row was already in the proven space
+   */
+
+  boolean insert(Row newRow,int source)
+    {
+      BitSet from = new BitSet();
+      Row r = reduce(newRow,from);
+
+      if (r.size() == 0)
+	{
+	  depends.set(source,from);
+	  return true;
+	}
+
+      depends.set(source,null);
+      from.set(source);
+
+      // select the coefficient with the smallest magnitude as the
+      // pivot.  Among those, prefer the variable used by the fewest
+      // rows, since it has to be eliminated from all of them.
+      int pivot = 0;
+
+      for(int i=1;i<r.size();i++)
+	{
+	  int cmp = (r.weights != null ?
+		     Long.compare(Math.abs(r.weights[i]),
+				  Math.abs(r.weights[pivot])) :
+		     r.bigWeights[i].abs().compareTo(r.bigWeights[pivot].abs()));
+
+	  if (cmp < 0 ||
+	      (cmp == 0 &&
+	       columns[r.vars[i]].size < columns[r.vars[pivot]].size))
+	    pivot = i;
+	}
+
+      int var = r.vars[pivot];
+
+      if (Nullspace.debug)
+	System.out.println("pivot = "+var+", reduced row = "+r);
+
+      // eliminate the new pivot variable from the other rows
+
+      IntList col = columns[var];
+      int[] others = new int[col.size];
+      System.arraycopy(col.data,0,others,0,col.size);
+
+      for(int i=0;i<others.length;i++)
+	{
+	  setRow(others[i],Row.eliminate(pivots[others[i]],r,var));
+	  provenance[others[i]] = union(provenance[others[i]],from);
+	}
+
+      setRow(var,r);
+      provenance[var] = from;
+      numRows ++;
+
+      return false;
+    }
+
+  boolean follows(Row r)
+    {
+      return reduce(r,null).size() == 0;
+    }
+
+  /** Eliminate all the pivot variables from a row.  Since each row
+   *  contains only its own pivot, eliminating one pivot never brings
+   *  in another, so a single pass over the row's variables suffices.
+   *
+   *  @param from  If not null, the sources of the rows used are added
+   */
+
+  Row reduce(Row r,BitSet from)
+    {
+      int[] vars = r.vars;
+
+      for(int i=0;i<vars.length;i++)
+	{
+	  Row p = (vars[i] < pivots.length ? pivots[vars[i]] : null);
+
+	  if (p != null)
+	    {
+	      r = Row.eliminate(r,p,vars[i]);
+
+	      if (from != null)
+		from.or(provenance[vars[i]]);
+	    }
+	}
+
+      return r;
+    }
+
+  /** The rows made from the constraint are dropped, and what they
+   *  were made from is added again, along with the sources that
+   *  followed from them.  The remaining rows don't use the retracted
+   *  sources, and together with the sources added again they span
+   *  everything the other sources do. */
+
+  boolean retract(int id)
+    {
+      if (!hasSource(id))
+	return false;
+
+      BitSet gone = new BitSet();
+      IntList made = sourcesOf(id);
+
+      for(int i=0;i<made.size;i++)
+	{
+	  gone.set(made.data[i]);
+	  sources.set(made.data[i],null);
+	  depends.set(made.data[i],null);
+	}
+
+      BitSet lost = new BitSet();
+
+      for(int i=0;i<pivots.length;i++)
+	if (pivots[i] != null && provenance[i].intersects(gone))
+	  {
+	    lost.or(provenance[i]);
+	    removeRow(i);
+	  }
+
+      for(int i=0;i<numSources;i++)
+	{
+	  BitSet d = (BitSet)depends.get(i);
+
+	  if (d != null && (d == UNKNOWN || d.intersects(gone)))
+	    lost.set(i);
+	}
+
+      lost.andNot(gone);
+
+      for(int i=lost.nextSetBit(0);i>=0;i=lost.nextSetBit(i+1))
+	insert((Row)sources.get(i),i);
+
+      return true;
+    }
+
+  /** The union of two sets of sources */
+
+  static BitSet union(BitSet a,BitSet b)
+    {
+      BitSet u = (BitSet)a.clone();
+      u.or(b);
+
+      return u;
+    }
+
+  /** Renumber a set of sources, adding n to each */
+
+  static BitSet shift(BitSet b,int n)
+    {
+      if (b == null || b == UNKNOWN)
+	return b;
+
+      BitSet s = new BitSet();
+
+      for(int i=b.nextSetBit(0);i>=0;i=b.nextSetBit(i+1))
+	s.set(i+n);
+
+      return s;
+    }
+
+  /** Replace the row with the given pivot, and update the index */
+
+  void setRow(int pivot,Row r)
+    {
+      Row old = pivots[pivot];
+
+      if (old != null)
+	for(int i=0;i<old.vars.length;i++)
+	  columns[old.vars[i]].removeValue(pivot);
+
+      pivots[pivot] = r;
+
+      for(int i=0;i<r.vars.length;i++)
+	columns[r.vars[i]].add(pivot);
+    }
+
+  void addVariable(int id)
+    {
+      columns = ensureCapacity(columns,id);
+      columns[id] = new IntList();
+
+      if (id >= pivots.length)
+	{
+	  Row[] p = new Row[columns.length];
+	  System.arraycopy(pivots,0,p,0,pivots.length);
+	  pivots = p;
+
+	  BitSet[] b = new BitSet[columns.length];
+	  System.arraycopy(provenance,0,b,0,provenance.length);
+	  provenance = b;
+	}
+    }
+
+  IntList variables()
+    {
+      IntList vars = new IntList();
+
+      for(int i=0;i<columns.length;i++)
+	if (columns[i] != null)
+	  vars.add(i);
+
+      return vars;
+    }
+
+  void clear()
+    {
+      pivots = new Row[16];
+      columns = new IntList[16];
+      provenance = new BitSet[16];
+      numRows = 0;
+      clearSources();
+    }
+
+  /** Each variable is eliminated in turn.  A row that has it as its
+   *  pivot is the only row that uses it, and is dropped.  Otherwise one
+   *  of the rows that use it is used to eliminate it from the others,
+   *  and then dropped.  That row contains no other pivot, so the
+   *  remaining rows keep their pivots.  The rows left become the
+   *  sources, and can't be retracted. */
+
+  void project(IntList dead)
+    {
+      for(int k=0;k<dead.size;k++)
+	{
+	  int var = dead.data[k];
+	  IntList col = columns[var];
+
+	  if (pivots[var] != null)
+	    removeRow(var);
+	  else if (col.size > 0)
+	    {
+	      int[] rows = new int[col.size];
+	      System.arraycopy(col.data,0,rows,0,col.size);
+
+	      Row r = pivots[rows[0]];
+
+	      for(int i=1;i<rows.length;i++)
+		setRow(rows[i],Row.eliminate(pivots[rows[i]],r,var));
+
+	      removeRow(rows[0]);
+	    }
+
+	  columns[var] = null;
+	}
+
+      clearSources();
+
+      for(int i=0;i<pivots.length;i++)
+	if (pivots[i] != null)
+	  {
+	    provenance[i] = new BitSet();
+	    provenance[i].set(addSource(pivots[i],0));
+	  }
+    }
+
+  void measure(NullspaceMetrics m)
+    {
+      m.rows += numRows;
+
+      for(int i=0;i<pivots.length;i++)
+	if (pivots[i] != null)
+	  {
+	    m.nonzeros += pivots[i].size();
+	    m.coefficients(pivots[i]);
+	  }
+    }
+
+  /** Remove the row with the given pivot, and update the index */
+
+  void removeRow(int pivot)
+    {
+      Row old = pivots[pivot];
+
+      for(int i=0;i<old.vars.length;i++)
+	columns[old.vars[i]].removeValue(pivot);
+
+      pivots[pivot] = null;
+      provenance[pivot] = null;
+      numRows --;
+    }
+
+  void merge(ProofEngine other,int offset)
+    {
+      EchelonEngine e = (EchelonEngine)other;
+
+      for(int i=0;i<e.columns.length;i++)
+	if (e.columns[i] != null)
+	  addVariable(i+offset);
+
+      // the other engine's sources are numbered after this one's
+      int first = mergeSources(e,offset);
+
+      for(int i=0;i<e.numSources;i++)
+	depends.set(first+i,shift((BitSet)e.depends.get(i),first));
+
+      for(int i=0;i<e.pivots.length;i++)
+	if (e.pivots[i] != null)
+	  {
+	    setRow(i+offset,e.pivots[i].shift(offset));
+	    provenance[i+offset] = shift(e.provenance[i],first);
+	  }
+
+      numRows += e.numRows;
+    }
+
+  ProofEngine copy()
+    {
+      EchelonEngine e = new EchelonEngine();
+
+      // the rows are shared, but the index is changed in place
+      e.pivots = pivots.clone();
+      e.columns = copyColumns(columns);
+      e.provenance = provenance.clone();
+      e.numRows = numRows;
+      copySources(e);
+      e.depends = depends.copy();
+
+      return e;
+    }
+
+  String toString(Object[] variables)
+    {
+      StringBuffer sb = new StringBuffer("(");
+      int n = 0;
+
+      for(int i=0;i<pivots.length;i++)
+	if (pivots[i] != null)
+	  {
+	    sb.append(pivots[i].toString(variables));
+	    if (++n < numRows)
+	      sb.append(",\n   ");
+	  }
+
+      sb.append(")");
+
+      return new String(sb);
+    }
+}
+
+/** An engine that keeps the proven constraints in reduced row-echelon
+ *  form modulo several large primes, in addition to an exact engine.
+ *  The arithmetic modulo a prime below 2^61 fits in a long, so the
+ *  cost of each operation does not grow with the proof.
+ *
+ *  A constraint that follows over the rationals also follows modulo
+ *  each prime; the converse can fail, but only by an unlucky
+ *  cancellation modulo that prime.  When all the primes agree, their
+ *  answer is used.  When they disagree, the exact engine decides.
+ *
+ *  The exact engine is only brought up to date when it is needed:
+ *  the rows added since then are kept in a list.
+ *
+ *  Each row of the bases records the sources it was made from, as in
+ *  EchelonEngine, so that retracting a constraint only drops the rows
+ *  made from it.
+ */
+
+class ModularEngine extends ProofEngine
+{
+  /** The primes, each of the form 2^61 - c for a small c */
+  static final long[] PRIMES = { (1L<<61)-1, (1L<<61)-31 };
+
+  /** How often the primes agreed, and how often the exact engine had
+   *  to decide */
+  static long agreements = 0, fallbacks = 0;
+
+  /** The proven constraints modulo each prime */
+  ModularBasis[] bases;
+
+  /** The exact engine, or null if it hasn't been needed yet */
+  ProofEngine exact = null;
+
+  /** Variables and rows not yet passed on to the exact engine */
+  IntList pendingVariables = new IntList();
+  Vector pendingRows = new Vector();
+
+  /** The id of the constraint each pending row was made from */
+  IntList pendingIds = new IntList();
+
+  ModularEngine()
+    {
+      bases = new ModularBasis[PRIMES.length];
+
+      for(int i=0;i<bases.length;i++)
+	bases[i] = new ModularBasis(PRIMES[i]);
+    }
+
+  boolean add(Row r)
+    {
+      return insert(r,-1,0);
+    }
+
+  boolean add(Row r,int id)
+    {
+      int source = addSource(r,id);
+
+      return insert(r,id != 0 ? source : -1,id);
+    }
+
+  /** Add the row of a source to the proven space
+   *
+   *  @param source  The number of the source, or -1 if it can't be
+   *                 retracted
+   *  @param id      The id of the constraint it was made from
+   *  @return        True if the row was already in the proven space
+   */
+
+  boolean insert(Row r,int source,int id)
+    {
+      boolean result = bases[0].add(r,source);
+      boolean agree = true;
+
+      for(int i=1;i<bases.length;i++)
+	if (bases[i].add(r,source) != result)
+	  agree = false;
+
+      if (agree)
+	{
+	  agreements ++;
+
+	  if (!result)
+	    {
+	      pendingRows.addElement(r);
+	      pendingIds.add(id);
+	    }
+
+	  return result;
+	}
+
+      fallbacks ++;
+
+      return exact().add(r,id);
+    }
+
+  /** The rows of the bases made from the retracted sources are
+   *  dropped, and the exact engine retracts the constraint itself.  A
+   *  remaining source that has none of the dropped pivots as a
+   *  variable is reduced by the same rows as before, so it still
+   *  follows.  The other remaining sources are added again. */
+
+  boolean retract(int id)
+    {
+      if (!hasSource(id))
+	return false;
+
+      BitSet gone = new BitSet();
+      IntList made = sourcesOf(id);
+
+      for(int i=0;i<made.size;i++)
+	{
+	  gone.set(made.data[i]);
+	  sources.set(made.data[i],null);
+	}
+
+      boolean[] dropped = new boolean[bases[0].rowVars.length];
+
+      for(int i=0;i<bases.length;i++)
+	bases[i].drop(gone,dropped);
+
+      Vector rows = pendingRows;
+      IntList ids = pendingIds;
+
+      pendingRows = new Vector();
+      pendingIds = new IntList();
+
+      for(int i=0;i<rows.size();i++)
+	if (ids.data[i] != id)
+	  {
+	    pendingRows.addElement(rows.elementAt(i));
+	    pendingIds.add(ids.data[i]);
+	  }
+
+      if (exact != null)
+	exact.retract(id);
+
+      for(int i=0;i<numSources;i++)
+	{
+	  Row r = (Row)sources.get(i);
+
+	  if (r != null && usesAny(r,dropped))
+	    insert(r,sourceIds.get(i) != 0 ? i : -1,sourceIds.get(i));
+	}
+
+      return true;
+    }
+
+  boolean follows(Row r)
+    {
+      boolean result = bases[0].follows(r);
+
+      for(int i=1;i<bases.length;i++)
+	if (bases[i].follows(r) != result)
+	  {
+	    fallbacks ++;
+	    return exact().follows(r);
+	  }
+
+      agreements ++;
+
+      return result;
+    }
+
+  boolean followsExactly(Row r)
+    {
+      return exact().follows(r);
+    }
+
+  /** Bring the exact engine up to date, and return it */
+
+  ProofEngine exact()
+    {
+      if (exact == null)
+	exact = new EchelonEngine();
+
+      for(int i=0;i<pendingVariables.size;i++)
+	exact.addVariable(pendingVariables.data[i]);
+
+      for(int i=0;i<pendingRows.size();i++)
+	exact.add((Row)pendingRows.elementAt(i),pendingIds.data[i]);
+
+      pendingVariables = new IntList();
+      pendingRows.removeAllElements();
+      pendingIds = new IntList();
+
+      return exact;
+    }
+
+  void addVariable(int id)
+    {
+      for(int i=0;i<bases.length;i++)
+	bases[i].addVariable(id);
+
+      pendingVariables.add(id);
+    }
+
+  IntList variables()
+    {
+      IntList vars = new IntList();
+      IntList[] columns = bases[0].columns;
+
+      for(int i=0;i<columns.length;i++)
+	if (columns[i] != null)
+	  vars.add(i);
+
+      return vars;
+    }
+
+  void clear()
+    {
+      for(int i=0;i<bases.length;i++)
+	bases[i] = new ModularBasis(PRIMES[i]);
+
+      exact = null;
+      pendingVariables = new IntList();
+      pendingRows.removeAllElements();
+      pendingIds = new IntList();
+      clearSources();
+    }
+
+  void project(IntList dead)
+    {
+      projectSources(dead);
+
+      for(int i=0;i<bases.length;i++)
+	bases[i].project(dead);
+
+      exact().project(dead);
+    }
+
+  /** The rows are those of the first modular basis.  Its coefficients
+   *  are residues, so the coefficients measured are those of the exact
+   *  engine and the rows it hasn't seen yet. */
+
+  void measure(NullspaceMetrics m)
+    {
+      ModularBasis b = bases[0];
+
+      for(int i=0;i<b.rowVars.length;i++)
+	if (b.rowVars[i] != null)
+	  {
+	    m.rows ++;
+	    m.nonzeros += b.rowVars[i].length;
+	  }
+
+      if (exact != null)
+	{
+	  NullspaceMetrics em = new NullspaceMetrics();
+	  exact.measure(em);
+	  m.largest = Math.max(m.largest,em.largest);
+	  if (em.bigLargest != null &&
+	      (m.bigLargest == null || em.bigLargest.compareTo(m.bigLargest) > 0))
+	    m.bigLargest = em.bigLargest;
+	}
+
+      for(int i=0;i<pendingRows.size();i++)
+	m.coefficients((Row)pendingRows.elementAt(i));
+    }
+
+  void merge(ProofEngine other,int offset)
+    {
+      ModularEngine e = (ModularEngine)other;
+
+      int first = mergeSources(e,offset);
+
+      for(int i=0;i<bases.length;i++)
+	bases[i].merge(e.bases[i],offset,first);
+
+      // what the other exact engine doesn't know yet, this one
+      // doesn't either
+      for(int i=0;i<e.pendingVariables.size;i++)
+	pendingVariables.add(e.pendingVariables.data[i]+offset);
+
+      for(int i=0;i<e.pendingRows.size();i++)
+	{
+	  pendingRows.addElement(((Row)e.pendingRows.elementAt(i)).
+				 shift(offset));
+	  pendingIds.add(e.pendingIds.data[i]);
+	}
+
+      if (e.exact != null)
+	{
+	  if (exact == null)
+	    exact = new EchelonEngine();
+
+	  exact.merge(e.exact,offset);
+	}
+    }
+
+  ProofEngine copy()
+    {
+      ModularEngine e = new ModularEngine();
+
+      for(int i=0;i<bases.length;i++)
+	e.bases[i] = bases[i].copy();
+
+      e.exact = (exact != null ? exact.copy() : null);
+      e.pendingVariables = (IntList)pendingVariables.clone();
+      e.pendingRows = (Vector)pendingRows.clone();
+      e.pendingIds = (IntList)pendingIds.clone();
+      copySources(e);
+
+      return e;
+    }
+
+  String toString(Object[] variables)
+    {
+      return exact().toString(variables);
+    }
+
+  /** Report how often the exact engine was needed */
+
+  static String statistics()
+    {
+      return "modular answers: "+agreements+", exact fallbacks: "+fallbacks;
+    }
+}
+
+/** The proven constraints modulo one prime, in reduced row-echelon
+ *  form.  Each row is scaled so that its pivot coefficient is 1.
+ *  Rows are never changed once made, so copies can share them.
+ */
+
+class ModularBasis
+{
+  /** The prime, and c = 2^61 - prime */
+  final long p, c;
+
+  /** The variables and coefficients of the rows, indexed by the id of
+   *  their pivot variable.  Null for variables that are not a pivot. */
+  int[][] rowVars = new int[16][];
+  long[][] rowValues = new long[16][];
+
+  /** An inverted index of the rows, as in EchelonEngine */
+  IntList[] columns = new IntList[16];
+
+  /** The sources each row is a combination of, as in EchelonEngine */
+  BitSet[] provenance = new BitSet[16];
+
+  /** The result of reduce() */
+  int[] vars = new int[16];
+  long[] values = new long[16];
+  int size;
+
+  /** Scratch space for combine() */
+  int[] tmpVars = new int[16];
+  long[] tmpValues = new long[16];
+
+  ModularBasis(long prime)
+    {
+      p = prime;
+      c = (1L<<61)-prime;
+    }
+
+  /** Add a row
+   *
+   *  @param source  The number of the source it is, or -1
+   *  @return        True if the row was already in the span, modulo p
+   */
+
+  boolean add(Row r,int source)
+    {
+      BitSet from = new BitSet();
+
+      reduce(r,from);
+
+      if (size == 0)
+	return true;
+
+      if (source >= 0)
+	from.set(source);
+
+      // prefer the variable used by the fewest rows as the pivot
+      int pivot = 0;
+
+      for(int i=1;i<size;i++)
+	if (columns[vars[i]].size < columns[vars[pivot]].size)
+	  pivot = i;
+
+      int var = vars[pivot];
+      long inverse = inverse(values[pivot]);
+
+      int[] newVars = new int[size];
+      long[] newValues = new long[size];
+
+      for(int i=0;i<size;i++)
+	{
+	  newVars[i] = vars[i];
+	  newValues[i] = mul(values[i],inverse);
+	}
+
+      // eliminate the new pivot variable from the other rows
+
+      IntList col = columns[var];
+      int[] others = new int[col.size];
+      System.arraycopy(col.data,0,others,0,col.size);
+
+      for(int i=0;i<others.length;i++)
+	{
+	  int q = others[i];
+	  int[] qv = rowVars[q];
+	  long[] qw = rowValues[q];
+
+	  size = qv.length;
+	  ensureCapacity(size);
+	  System.arraycopy(qv,0,vars,0,size);
+	  System.arraycopy(qw,0,values,0,size);
+
+	  combine(qw[indexOf(qv,var)],newVars,newValues);
+	  setRow(q,trim(vars,size),trim(values,size));
+	  provenance[q] = EchelonEngine.union(provenance[q],from);
+	}
+
+      setRow(var,newVars,newValues);
+      provenance[var] = from;
+
+      return false;
+    }
+
+  /** Check if a row is in the span, modulo p */
+
+  boolean follows(Row r)
+    {
+      reduce(r,null);
+
+      return size == 0;
+    }
+
+  /** Remove the rows made from any of the given sources
+   *
+   *  @param dropped  The pivots of the rows removed are set in it
+   */
+
+  void drop(BitSet gone,boolean[] dropped)
+    {
+      for(int i=0;i<rowVars.length;i++)
+	if (rowVars[i] != null && provenance[i].intersects(gone))
+	  {
+	    setRow(i,null,null);
+	    provenance[i] = null;
+	    dropped[i] = true;
+	  }
+    }
+
+  /** Reduce a row modulo p and eliminate all the pivot variables from
+   *  it, leaving the result in vars, values and size.  As in
+   *  EchelonEngine, a single pass over the row's variables suffices,
+   *  and the coefficient of each pivot is still its original one
+   *  when it is eliminated.
+   *
+   *  @param from  If not null, the sources of the rows used are added
+   */
+
+  void reduce(Row r,BitSet from)
+    {
+      size = 0;
+      ensureCapacity(r.size());
+
+      for(int i=0;i<r.size();i++)
+	{
+	  long w = residue(r,i);
+
+	  if (w != 0)
+	    {
+	      vars[size] = r.vars[i];
+	      values[size++] = w;
+	    }
+	}
+
+      for(int i=0;i<r.size();i++)
+	{
+	  int var = r.vars[i];
+
+	  if (var < rowVars.length && rowVars[var] != null)
+	    {
+	      long w = residue(r,i);
+
+	      if (w != 0)
+		{
+		  combine(w,rowVars[var],rowValues[var]);
+
+		  if (from != null)
+		    from.or(provenance[var]);
+		}
+	    }
+	}
+    }
+
+  /** Subtract f times a row from the row in vars and values */
+
+  void combine(long f,int[] bv,long[] bw)
+    {
+      int n = 0;
+      int i = 0, j = 0;
+
+      if (tmpVars.length < size+bv.length)
+	{
+	  tmpVars = new int[2*(size+bv.length)];
+	  tmpValues = new long[tmpVars.length];
+	}
+
+      while (i < size || j < bv.length)
+	{
+	  long w;
+	  int var;
+
+	  if (j == bv.length || (i < size && vars[i] < bv[j]))
+	    {
+	      var = vars[i];
+	      w = values[i++];
+	    }
+	  else if (i == size || bv[j] < vars[i])
+	    {
+	      var = bv[j];
+	      w = sub(0,mul(f,bw[j++]));
+	    }
+	  else
+	    {
+	      var = vars[i];
+	      w = sub(values[i++],mul(f,bw[j++]));
+	    }
+
+	  if (w != 0)
+	    {
+	      tmpVars[n] = var;
+	      tmpValues[n++] = w;
+	    }
+	}
+
+      int[] v = vars;
+      long[] vw = values;
+      vars = tmpVars;
+      values = tmpValues;
+      tmpVars = v;
+      tmpValues = vw;
+      size = n;
+    }
+
+  /** Replace the row with the given pivot, and update the index.  The
+   *  row is removed if v is null. */
+
+  void setRow(int pivot,int[] v,long[] w)
+    {
+      int[] old = rowVars[pivot];
+
+      if (old != null)
+	for(int i=0;i<old.length;i++)
+	  columns[old[i]].removeValue(pivot);
+
+      rowVars[pivot] = v;
+      rowValues[pivot] = w;
+
+      if (v != null)
+	for(int i=0;i<v.length;i++)
+	  columns[v[i]].add(pivot);
+    }
+
+  void addVariable(int id)
+    {
+      columns = ProofEngine.ensureCapacity(columns,id);
+      columns[id] = new IntList();
+
+      if (id >= rowVars.length)
+	{
+	  int[][] v = new int[columns.length][];
+	  long[][] w = new long[columns.length][];
+	  BitSet[] f = new BitSet[columns.length];
+	  System.arraycopy(rowVars,0,v,0,rowVars.length);
+	  System.arraycopy(rowValues,0,w,0,rowValues.length);
+	  System.arraycopy(provenance,0,f,0,provenance.length);
+	  rowVars = v;
+	  rowValues = w;
+	  provenance = f;
+	}
+    }
+
+  /** Eliminate variables, as in EchelonEngine.project().  The
+   *  sources are replaced then, so the rows are made from none. */
+
+  void project(IntList dead)
+    {
+      for(int k=0;k<dead.size;k++)
+	{
+	  int var = dead.data[k];
+	  IntList col = columns[var];
+
+	  if (rowVars[var] != null)
+	    setRow(var,null,null);
+	  else if (col.size > 0)
+	    {
+	      int[] rows = new int[col.size];
+	      System.arraycopy(col.data,0,rows,0,col.size);
+
+	      int[] sv = rowVars[rows[0]];
+	      long[] sw = rowValues[rows[0]];
+	      long inverse = inverse(sw[indexOf(sv,var)]);
+
+	      for(int i=1;i<rows.length;i++)
+		{
+		  int q = rows[i];
+		  int[] qv = rowVars[q];
+		  long[] qw = rowValues[q];
+
+		  size = qv.length;
+		  ensureCapacity(size);
+		  System.arraycopy(qv,0,vars,0,size);
+		  System.arraycopy(qw,0,values,0,size);
+
+		  combine(mul(qw[indexOf(qv,var)],inverse),sv,sw);
+		  setRow(q,trim(vars,size),trim(values,size));
+		}
+
+	      setRow(rows[0],null,null);
+	    }
+
+	  columns[var] = null;
+	}
+
+      for(int i=0;i<rowVars.length;i++)
+	provenance[i] = (rowVars[i] != null ? new BitSet() : null);
+    }
+
+  /** Take over the rows of another basis, as in ProofEngine.merge()
+   *
+   *  @param first  The number its first source gets here
+   */
+
+  void merge(ModularBasis b,int offset,int first)
+    {
+      for(int i=0;i<b.columns.length;i++)
+	if (b.columns[i] != null)
+	  addVariable(i+offset);
+
+      for(int i=0;i<b.rowVars.length;i++)
+	if (b.rowVars[i] != null)
+	  {
+	    int[] v = new int[b.rowVars[i].length];
+
+	    for(int j=0;j<v.length;j++)
+	      v[j] = b.rowVars[i][j]+offset;
+
+	    setRow(i+offset,v,b.rowValues[i]);
+	    provenance[i+offset] = EchelonEngine.shift(b.provenance[i],first);
+	  }
+    }
+
+  ModularBasis copy()
+    {
+      ModularBasis b = new ModularBasis(p);
+
+      b.rowVars = rowVars.clone();
+      b.rowValues = rowValues.clone();
+      b.provenance = provenance.clone();
+      b.columns = ProofEngine.copyColumns(columns);
+
+      return b;
+    }
+
+  void ensureCapacity(int n)
+    {
+      if (vars.length < n)
+	{
+	  vars = new int[2*n];
+	  values = new long[2*n];
+	}
+    }
+
+  /** The coefficient of a row, modulo p */
+
+  long residue(Row r,int i)
+    {
+      if (r.weights != null)
+	{
+	  long w = r.weights[i] % p;
+	  return (w < 0 ? w+p : w);
+	}
+
+      return r.bigWeights[i].mod(BigInteger.valueOf(p)).longValue();
+    }
+
+  long sub(long a,long b)
+    {
+      long d = a-b;
+      return (d < 0 ? d+p : d);
+    }
+
+  /** Multiply two numbers modulo p.  The 122 bit product is split at
+   *  bit 61, and since 2^61 = c (mod p), the high part is folded back
+   *  in after multiplying it by c, until nothing is left above bit 61. */
+
+  long mul(long a,long b)
+    {
+      long hi = Math.multiplyHigh(a,b);
+      long lo = a*b;
+      long high = (hi << 3) | (lo >>> 61);
+      long low = lo & ((1L<<61)-1);
+
+      while (high != 0)
+	{
+	  hi = Math.multiplyHigh(high,c);
+	  lo = high*c;
+	  high = (hi << 3) | (lo >>> 61);
+	  low += lo & ((1L<<61)-1);
+	}
+
+      return low % p;
+    }
+
+  /** The inverse of a nonzero number modulo p, as a^(p-2) */
+
+  long inverse(long a)
+    {
+      long result = 1;
+
+      for(long e=p-2;e!=0;e>>>=1)
+	{
+	  if ((e & 1) != 0)
+	    result = mul(result,a);
+	  a = mul(a,a);
+	}
+
+      return result;
+    }
+
+  static int indexOf(int[] v,int var)
+    {
+      return java.util.Arrays.binarySearch(v,var);
+    }
+
+  static int[] trim(int[] v,int n)
+    {
+      int[] t = new int[n];
+      System.arraycopy(v,0,t,0,n);
+      return t;
+    }
+
+  static long[] trim(long[] v,int n)
+    {
+      long[] t = new long[n];
+      System.arraycopy(v,0,t,0,n);
+      return t;
+    }
+}
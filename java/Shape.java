@@ -55,6 +55,9 @@ public abstract class Shape implements Constants
    */
   abstract void replaces(Shape s);
 
+  /** The kind of this shape: POINT, CIRCLE or the type of line shape */
+  abstract int kind();
+
   /** Draw the shape in the right color
    *
    * @param g  The graphics context
@@ -123,6 +126,10 @@ class PointShape extends Shape
   /** Unique angle measures centered at this point */
   Vector uniques = new Vector();
 
+  /** The unique angle measures centered at this point, indexed by the
+   *  pair of rays that make each one */
+  Hashtable uniqueIndex = new Hashtable();
+
   /** Is this a free point?   
    * (equivalent to source instanceof ArbitraryDependency)
    * Used by drawPrimitive() */
@@ -197,6 +204,8 @@ class PointShape extends Shape
       return new AngleMeasure(p1,this,p2);
     }
 
+  int kind() { return POINT; }
+
   void replaces(Shape s)
     {
       PointShape ps =(PointShape)s;
@@ -209,10 +218,12 @@ class PointShape extends Shape
 
   void deletePOs()
     {
-      for(int i=0;i<POs.size();i++)
-	((PartialOrder)POs.elementAt(i)).delete();
+      // take the nodes off first; deleting them can sweep their lines
+      Vector v = POs;
+      POs = new Vector();
 
-      POs.removeAllElements();
+      for(int i=0;i<v.size();i++)
+	((PartialOrder)v.elementAt(i)).delete();
     }
 }
 
@@ -236,6 +247,13 @@ abstract class LineShape extends Shape
   PartialOrder Q = null;    // second point of this line shape
   boolean QonLeft;          // is P to the left of Q?
 
+  /** The order of the points on this line, or null if it has none */
+
+  LineOrder order()
+    {
+      return (P == null ? null : P.line);
+    }
+
   /** Change the line to that given by a and b */
 
   void move(PointShape a,PointShape b)
@@ -245,14 +263,25 @@ abstract class LineShape extends Shape
       x2 = b.x;
       y2 = b.y;
 
-      A = y2 - y1;
-      B = x1 - x2;
-      C = x2*y1 - x1*y2;
+      setABC();
+    }
+
+  /** Compute A, B and C from the points on the line */
+
+  void setABC()
+    {
+      A = Geometry.lineA(x1,y1,x2,y2);
+      B = Geometry.lineB(x1,y1,x2,y2);
+      C = Geometry.lineC(x1,y1,x2,y2);
     }
 
   /** given (x,y) assumed to be collinear with (x1,y1), (x2,y2)
    return true is (x,y) is on the LineShape */
-  abstract boolean isPointOnLine(double x,double y);
+  boolean isPointOnLine(double x,double y)
+    {
+      return Geometry.isPointOnLine(kind(),x1,y1,x2,y2,x,y);
+    }
+
   boolean isPointOnLine(PointShape ps) { return isPointOnLine(ps.x,ps.y); }
 
   /** Add a point on the line to the partial order */
@@ -282,24 +311,30 @@ abstract class LineShape extends Shape
 
   void makePO(PointShape p,PointShape q)
     {
-      // check to see if an existing PO already contains these points
+      releasePO();
+
+      // check to see if an existing PO already contains these points,
+      // by looking q up in the line order of each PO of p
       for(int i=0;i<p.POs.size();i++)
 	{
-	  P = (PartialOrder)p.POs.elementAt(i);
+	  PartialOrder p1 = (PartialOrder)p.POs.elementAt(i);
 
-	  Q = P.findOnLeft(q);
+	  if (p1.line == null)
+	    continue;
 
-	  if (Q != null)
-	    {
-	      QonLeft = true;
-	      return;
-	    }
+	  PartialOrder q1 = p1.line.nodeOf(q);
 
-	  Q = P.findOnRight(q);
+	  if (q1 == null)
+	    continue;
 
-	  if (Q != null)
+	  if (q1.isLeftOf(p1) || p1.isLeftOf(q1))
 	    {
-	      QonLeft = false;
+	      P = p1;
+	      Q = q1;
+	      QonLeft = q1.isLeftOf(p1);
+
+	      P.retain();
+	      Q.retain();
 	      return;
 	    }
 	}
@@ -311,6 +346,23 @@ abstract class LineShape extends Shape
 
       P.isNew = false;
       Q.isNew = false;
+
+      P.retain();
+      Q.retain();
+    }
+
+  /** Let go of the partial order nodes of this line, when it is thrown
+   *  away */
+
+  void releasePO()
+    {
+      if (P != null)
+	P.release();
+
+      if (Q != null)
+	Q.release();
+
+      P = Q = null;
     }
 
   void drawLabel(Graphics g,Transform t)
@@ -340,11 +392,7 @@ class LineSegment extends LineShape
 		 t.virtualToScreenY(y2));
     }
 
-  boolean isPointOnLine(double x,double y)
-    {
-      return (Geometry.sameSide(x1,y1,x,y,x2,y2) &&
-	      Geometry.sameSide(x2,y2,x,y,x1,y1));
-    }
+  int kind() { return LINE_SEGMENT; }
 
   void addPointOnShape(PartialOrder R)
     {
@@ -407,10 +455,7 @@ class Ray extends LineShape
 	g.drawLine(t.virtualToScreenX(x1),t.virtualToScreenY(y1),p.x,p.y);
     }
 
-  boolean isPointOnLine(double x,double y)
-    {
-      return (Geometry.sameSide(x1,y1,x,y,x2,y2));
-    }
+  int kind() { return RAY; }
 
   void addPointOnShape(PartialOrder R)
     {
@@ -453,10 +498,7 @@ class ComplRay extends LineShape
 
     }
 
-  boolean isPointOnLine(double x,double y)
-    {
-      return (!Geometry.sameSide(x1,y1,x,y,x2,y2));
-    }
+  int kind() { return COMPL_RAY; }
 
   void addPointOnShape(PartialOrder R)
     {
@@ -513,7 +555,7 @@ class Line extends LineShape
       g.drawLine(p1.x,p1.y,p2.x,p2.y);
     }
 
-  boolean isPointOnLine(double x,double y) { return true; }
+  int kind() { return LINE; }
 
   void addPointOnShape(PartialOrder R) {}
     // do nothing
@@ -543,16 +585,16 @@ class PerpBi extends Line
       origins[1] = b;
     }
 
+  int kind() { return PERP_BI; }
+
   void move(PointShape a,PointShape b)
     {
-      x1 = (a.x+b.x)/2;
-      y1 = (a.y+b.y)/2;
-      x2 = x1 + b.y - a.y;
-      y2 = y1 - b.x + a.x;
-
-      A = y2 - y1;
-      B = x1 - x2;
-      C = x2*y1 - x1*y2;
+      x1 = Geometry.midpoint(a.x,b.x);
+      y1 = Geometry.midpoint(a.y,b.y);
+      x2 = Geometry.bisectorX(x1,a.y,b.y);
+      y2 = Geometry.bisectorY(y1,a.x,b.x);
+
+      setABC();
     }
 }
 
@@ -594,6 +636,8 @@ class Circle extends Shape
       radius = Geometry.distance(c,e);
     }
 
+  int kind() { return CIRCLE; }
+
   void drawPrimitive(Graphics g,Transform t)
     {
       g.drawOval(t.virtualToScreenX(x-radius),
@@ -640,9 +684,9 @@ abstract class Dependency implements Constants
   /** Was the construction successful last time it was computed? */
   boolean successful = true;
 
-  /** A temporary variable used by drag point; should be kept false by
-   *  default. */
-  boolean mark = false;
+  /** The drag that last marked this dependency.  A temporary variable
+   *  used by drag point. */
+  int mark = 0;
 
   /** A pointer to the rule used to generate this dependency.
    *  Temporary variable used by editorCopy. */
@@ -689,6 +733,9 @@ abstract class Dependency implements Constants
 
 abstract class MeasureDependency extends Dependency
 {
+  /** The id of this variable in constraints and the nullspace */
+  int id = VariableIds.next();
+
   /** All expressions that use this measure */
   Vector measures = new Vector();
 
@@ -818,27 +865,38 @@ class AngleMeasure extends MeasureDependency
    *  represent the same angle */
   Unique unique = null;
 
-  /** Get the unique representation of this measure, or create it */
+  /** Get the unique representation of this measure, or create it.
+   *  The rays of the angle are found once, and each pair of them is
+   *  looked up in the apex's index; if more than one unique matches,
+   *  the oldest is used. */
   Unique getEquivalent()
     {
       if (unique != null)
 	return unique;
 
-      Vector u = ((PointShape)parents[1]).uniques;
+      PointShape apex = (PointShape)parents[1];
+      Vector rays1 = UniqueAngle.rays(apex,(PointShape)parents[0]);
+      Vector rays2 = UniqueAngle.rays(apex,(PointShape)parents[2]);
 
-      for(int i=0;i<u.size();i++)
-	{
-	  Unique ua = (Unique)u.elementAt(i);
+      for(int i=0;i<rays1.size();i++)
+	for(int j=0;j<rays2.size();j++)
+	  {
+	    RayPair key = new RayPair((RayKey)rays1.elementAt(i),
+				      (RayKey)rays2.elementAt(j));
+	    Unique u = (Unique)apex.uniqueIndex.get(key);
 
-	  if (ua.isEquivalent(this))
-	    {
-	      unique = ua;
-	      return ua;
-	    }
-	}
+	    if (u != null && (unique == null || u.id < unique.id))
+	      unique = u;
+	  }
+
+      if (unique != null)
+	return unique;
 
-      unique = new UniqueAngle(this);
-      u.addElement(unique);
+      UniqueAngle ua = new UniqueAngle(this,UniqueAngle.first(rays1),
+				       UniqueAngle.first(rays2));
+      apex.uniques.addElement(ua);
+      apex.uniqueIndex.put(ua.key(),ua);
+      unique = ua;
 
       return unique;
     }
@@ -1024,6 +1082,19 @@ class ConstructionDependency extends Dependency
 	    }
 	}
 
+      // run the compiled plan when there is one; it writes straight
+      // into the children, without making any new shapes
+      ConstructionPlan plan = construction.plan;
+
+      if (plan != null && plan.accepts(parents,children))
+	{
+	  successful = plan.evaluate(parents,children);
+
+	  for(i=0;i<children.length;i++)
+	    children[i].valid = successful;
+	  return;
+	}
+
       try
 	{
 	  // apply the construction
@@ -32,9 +32,16 @@ public class Undo
   /** The nullspace before the last step */
   Nullspace lastNullspace = null;
 
+  /** The size of the nullspace after it was last compacted, before the
+   *  last step */
+  int lastCompactedSize;
+
   /** A dependency associated with the last step */
   Dependency lastStep = null;
 
+  /** The constraint assumed in the last step */
+  Constraint lastConstraint = null;
+
   /** The input location before drag */
   double x,y;
 
@@ -57,14 +64,31 @@ public class Undo
     lastStepType = CANT_UNDO;
     lastNullspace = null;
     lastStep = null;
+    lastConstraint = null;
     undoButton.disable();
   }
 
-  /** Save the nullspace */
+  /** Save the nullspace.  Copying it takes constant time; the copy
+   *  shares everything with the original until one of them changes.
+   *  Every shape is in the draw panel between steps, so the nullspace
+   *  is compacted first if it needs it. */
 
   void saveState()
   {
+    constraintFrame.compactIfNeeded();
     lastNullspace = (Nullspace)constraintFrame.nullspace.clone();
+    lastCompactedSize = constraintFrame.compactedSize;
+  }
+
+  /** Go back to the nullspace saved before the last step */
+
+  void restoreState()
+  {
+    if (lastNullspace == null)
+      System.out.println("Warning: lastNullspace == null");
+
+    constraintFrame.nullspace = lastNullspace;
+    constraintFrame.compactedSize = lastCompactedSize;
   }
 
   /** Save an intermediate step */
@@ -105,6 +129,17 @@ public class Undo
     undoButton.enable();
   }
 
+  /** Save an assume step.  Undoing it retracts the constraint from the
+   *  nullspace, so no copy is kept. */
+
+  void saveAssumeStep(Constraint c)
+  {
+    lastNullspace = null;
+    lastStepType = ASSUME;
+    lastConstraint = c;
+    undoButton.enable();
+  }
+
   /** Save the step of another type */
 
   void saveStep(int type)
@@ -145,9 +180,11 @@ public class Undo
 	// remove new shapes
 	for(int i=0;i<lastStep.children.length;i++)
 	  {
-	    // delete partial order info for new points
+	    // delete partial order info for new points and lines
 	    if (lastStep.children[i] instanceof PointShape)
 	      ((PointShape)lastStep.children[i]).deletePOs();
+	    else if (lastStep.children[i] instanceof LineShape)
+	      ((LineShape)lastStep.children[i]).releasePO();
 
 	    drawPanel.shapes.removeElement(lastStep.children[i]);
 	    drawPanel.names.remove(lastStep.children[i].label);
@@ -157,10 +194,7 @@ public class Undo
 	editor.removeLastStep();
 //	editor.removeStep(lastStep);
 
-	if (lastNullspace == null)
-	  System.out.println("Warning: lastNullspace == null");
-
-	constraintFrame.nullspace = lastNullspace;
+	restoreState();
 
 	if (lastStep instanceof ConstructionDependency ||
 	    lastStep instanceof IntersectionDependency)
@@ -189,10 +223,7 @@ public class Undo
 	break;
 
       case FORCE:
-	if (lastNullspace == null)
-	  System.out.println("Warning: lastNullspace == null");
-
-	constraintFrame.nullspace = lastNullspace;
+	restoreState();
 	constraintFrame.removeSteps("F");
 	break;
 
@@ -201,11 +232,9 @@ public class Undo
 	break;
 
       case ASSUME:
-	if (lastNullspace == null)
-	  System.out.println("Warning: lastNullspace == null");
-
-	constraintFrame.nullspace = lastNullspace;
-	constraintFrame.removeInput();
+	// a constraint that made no row left the nullspace as it was
+	constraintFrame.nullspace.retract(lastConstraint);
+	constraintFrame.removeInput(lastConstraint);
 	break;
 
       case OUTPUT:
@@ -216,16 +245,14 @@ public class Undo
 	return;
 
       case CONCLUDE:
-	if (lastNullspace == null)
-	  System.out.println("Warning: lastNullspace == null");
-
-	constraintFrame.nullspace = lastNullspace;
+	restoreState();
 	constraintFrame.removeOutput();
 	break;
     
       }
 
     // reset and redraw
+    constraintFrame.nullspaceChanged();
     drawPanel.selected.clear();
     drawPanel.redraw();
     setCantUndo();